@@ -0,0 +1,100 @@
+package com.mchenys.pluginloader;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import java.io.File;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * @Author: mChenys
+ * @Date: 2021/5/26
+ * @Description: 基准测试的公共工具, 先预热再计时, 结果只输出到logcat, 不对耗时做断言
+ * <p>
+ * 需要插件apk的测试通过instrumentation参数指定, 最好是几MB以上的插件, 没有时跳过:
+ * adb push plugin.apk /data/local/tmp/plugin.apk
+ * 或者 -Pandroid.testInstrumentationRunnerArguments.pluginApk=/path/to/plugin.apk
+ */
+public final class Benchmark {
+    public static final String TAG = "PLBenchmark";
+
+    private static final String ARG_PLUGIN_APK = "pluginApk";
+    private static final String DEFAULT_PLUGIN_APK = "/data/local/tmp/plugin.apk";
+
+    private Benchmark() {
+    }
+
+    /**
+     * 被测的操作
+     */
+    public interface Op {
+        void run() throws Exception;
+    }
+
+    /**
+     * @return 宿主Context
+     */
+    public static Context getTargetContext() {
+        return InstrumentationRegistry.getInstrumentation().getTargetContext();
+    }
+
+    /**
+     * 返回instrumentation参数指定的插件apk, 不存在时跳过当前测试
+     *
+     * @return
+     */
+    public static File getPluginApk() {
+        String path = InstrumentationRegistry.getArguments().getString(ARG_PLUGIN_APK, DEFAULT_PLUGIN_APK);
+        File apk = new File(path);
+        assumeTrue("plugin apk not found: " + path, apk.isFile());
+        Log.i(TAG, "plugin apk: " + path + ", " + apk.length() / 1024 + "KB");
+        return apk;
+    }
+
+    /**
+     * 执行iterations次操作并计时
+     *
+     * @param name       输出到logcat的名称
+     * @param iterations 计时的执行次数, 预热另外执行iterations/10+1次
+     * @param op         被测的操作
+     * @return 每次操作的平均耗时, 单位纳秒
+     */
+    public static long measure(String name, int iterations, Op op) {
+        try {
+            for (int i = 0; i < iterations / 10 + 1; i++) {
+                op.run();
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                op.run();
+            }
+            long nsPerOp = (System.nanoTime() - start) / iterations;
+            Log.i(TAG, name + ": " + nsPerOp + " ns/op");
+            return nsPerOp;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(name, e);
+        }
+    }
+
+    /**
+     * 依次测量原来的实现和现在的实现, 输出节省的比例
+     *
+     * @param iterations   计时的执行次数
+     * @param baselineName 原来实现的名称
+     * @param baseline     原来的实现
+     * @param name         现在实现的名称
+     * @param op           现在的实现
+     */
+    public static void compare(int iterations, String baselineName, Op baseline, String name, Op op) {
+        long before = measure(baselineName, iterations, baseline);
+        long after = measure(name, iterations, op);
+        if (before > 0) {
+            Log.i(TAG, name + " saves " + (before - after) * 100 / before + "% vs " + baselineName);
+        }
+    }
+}
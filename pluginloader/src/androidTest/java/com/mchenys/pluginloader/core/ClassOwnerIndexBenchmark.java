@@ -0,0 +1,99 @@
+package com.mchenys.pluginloader.core;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.mchenys.pluginloader.Benchmark;
+import com.mchenys.pluginloader.utils.DexUtil;
+import com.mchenys.pluginloader.utils.PluginUtil;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import dalvik.system.DexClassLoader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * @Author: mChenys
+ * @Date: 2021/5/27
+ * @Description: 类名索引的基准测试, 插件数增加时对比合并后的dexElements依次查找和通过索引查找的耗时
+ * <p>
+ * 用同一个插件apk复制出多个插件, 插件apk的指定方式见{@link Benchmark}.
+ * 复制出的插件类名相同, 依次查找时总是在第一个插件中找到, 所以只比较所有插件都没有的类的查找耗时
+ */
+@RunWith(AndroidJUnit4.class)
+public class ClassOwnerIndexBenchmark {
+    private static final int MAX_PLUGINS = 21;
+    private static final int[] PLUGIN_COUNTS = {1, 7, 14, MAX_PLUGINS};
+    private static final int ITERATIONS = 1000;
+    private static final String MISSING_CLASS = "com.mchenys.pluginloader.benchmark.MissingClass";
+
+    @Test
+    public void lookupByPluginCount() throws Exception {
+        Context context = Benchmark.getTargetContext();
+        File apk = Benchmark.getPluginApk();
+
+        File dir = new File(context.getCacheDir(), "class_owner_benchmark");
+        File optimizedDir = new File(dir, "oat");
+        optimizedDir.mkdirs();
+        List<File> copies = new ArrayList<>();
+        for (int i = 0; i < MAX_PLUGINS; i++) {
+            File copy = new File(dir, "plugin" + i + ".apk");
+            if (!copy.exists()) {
+                PluginUtil.copy(apk, copy, false);
+            }
+            copies.add(copy);
+        }
+
+        ClassLoader boot = context.getClassLoader().getParent();
+        for (int count : PLUGIN_COUNTS) {
+            // 和合并后的宿主一样, 一个ClassLoader中依次是各个插件的dex
+            StringBuilder dexPath = new StringBuilder();
+            for (int i = 0; i < count; i++) {
+                if (i > 0) {
+                    dexPath.append(File.pathSeparator);
+                }
+                dexPath.append(copies.get(i).getAbsolutePath());
+            }
+            final DexClassLoader combined = new DexClassLoader(dexPath.toString(), optimizedDir.getAbsolutePath(), null, boot);
+
+            final ClassOwnerIndex index = new ClassOwnerIndex(combined);
+            long start = System.nanoTime();
+            index.add("plugin", null, combined, DexUtil.getDexFiles(combined));
+            Log.i(Benchmark.TAG, count + " plugins, index " + index.size() + " classes in "
+                    + (System.nanoTime() - start) / 1000000 + "ms");
+
+            Benchmark.compare(ITERATIONS, count + " plugins, dexElements lookup", new Benchmark.Op() {
+                @Override
+                public void run() {
+                    try {
+                        Class.forName(MISSING_CLASS, false, combined);
+                        throw new AssertionError(MISSING_CLASS + " should not exist");
+                    } catch (ClassNotFoundException e) {
+                        // 查找了所有插件的dex
+                    }
+                }
+            }, count + " plugins, index lookup", new Benchmark.Op() {
+                @Override
+                public void run() {
+                    assertNull(index.loadClass("plugin", MISSING_CLASS));
+                }
+            });
+
+            // 索引中的类从所在dex加载, 和依次查找得到同一个类
+            String className = index.getClassNames("plugin").get(0);
+            Class<?> indexed = index.loadClass("plugin", className);
+            assertNotNull(indexed);
+            assertEquals(Class.forName(className, false, combined), indexed);
+        }
+    }
+}
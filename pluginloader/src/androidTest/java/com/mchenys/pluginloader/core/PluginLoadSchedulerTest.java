@@ -0,0 +1,75 @@
+package com.mchenys.pluginloader.core;
+
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.mchenys.pluginloader.utils.RunUtils;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @Author: mChenys
+ * @Date: 2021/5/27
+ * @Description: 插件加载调度器的测试
+ */
+@RunWith(AndroidJUnit4.class)
+public class PluginLoadSchedulerTest {
+
+    /**
+     * 模拟在主线程按需加载插件: 主线程提交并等待, 加载线程提交到主线程创建Application并等待,
+     * 主线程等待时要执行Application的创建, 不能互相等到{@link Constants#APPLICATION_TIMEOUT}
+     */
+    @Test
+    public void awaitOnDemandLoadOnMainThread() {
+        final PluginLoadScheduler scheduler = new PluginLoadScheduler();
+        final AtomicBoolean createdOnMainThread = new AtomicBoolean();
+        final AtomicReference<PluginLoadException> failure = new AtomicReference<>();
+        final long[] cost = new long[1];
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                long start = SystemClock.elapsedRealtime();
+                PluginLoadScheduler.LoadTask task = scheduler.schedule("on-demand.apk", PluginLoadScheduler.PRIORITY_HIGH, null, null,
+                        new PluginLoadScheduler.LoadWork() {
+                            @Override
+                            public LoadedPlugin load(PluginLoadScheduler.LoadTask task) throws Exception {
+                                // 和LoadedPlugin.invokeApplication一样提交到主线程并限时等待
+                                RunUtils.await(RunUtils.submitOnUiThreadCoalesced(new Callable<Boolean>() {
+                                    @Override
+                                    public Boolean call() {
+                                        createdOnMainThread.set(Looper.myLooper() == Looper.getMainLooper());
+                                        return true;
+                                    }
+                                }), Constants.APPLICATION_TIMEOUT, TimeUnit.MILLISECONDS);
+                                // 没有真正的插件, 加载结果是INVALID_PACKAGE
+                                return null;
+                            }
+                        }, false);
+                try {
+                    task.await();
+                } catch (PluginLoadException e) {
+                    failure.set(e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                cost[0] = SystemClock.elapsedRealtime() - start;
+            }
+        });
+
+        assertTrue(createdOnMainThread.get());
+        assertEquals(PluginLoadException.Reason.INVALID_PACKAGE, failure.get().getReason());
+        assertTrue("cost " + cost[0] + "ms", cost[0] < Constants.APPLICATION_TIMEOUT);
+    }
+}
@@ -0,0 +1,57 @@
+package com.mchenys.pluginloader.core;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.mchenys.pluginloader.Benchmark;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * @Author: mChenys
+ * @Date: 2021/5/26
+ * @Description: 插件清单解析的基准测试, 对比原来getPackageArchiveInfo+parsePackage解析两次和现在只解析一次,
+ * 插件apk的指定方式见{@link Benchmark}
+ */
+@RunWith(AndroidJUnit4.class)
+public class PluginManifestBenchmark {
+    private static final int ITERATIONS = 10;
+
+    @Test
+    public void parseOnce() throws Exception {
+        final Context context = Benchmark.getTargetContext();
+        final File apk = Benchmark.getPluginApk();
+        final PackageManager pm = context.getPackageManager();
+
+        Benchmark.compare(ITERATIONS, "getPackageArchiveInfo + parsePackage", new Benchmark.Op() {
+            @Override
+            public void run() {
+                PackageInfo packageInfo = pm.getPackageArchiveInfo(apk.getAbsolutePath(),
+                        PackageManager.GET_ACTIVITIES | PackageManager.GET_SERVICES);
+                assertNotNull(packageInfo);
+                assertNotNull(PackageParserCompat.parsePackage(context, apk, PackageParserCompat.PARSE_MUST_BE_APK));
+            }
+        }, "PluginManifest.parse", new Benchmark.Op() {
+            @Override
+            public void run() throws Exception {
+                assertNotNull(PluginManifest.parse(context, apk));
+            }
+        });
+
+        // 解析一次得到的PackageInfo和系统解析的一致
+        PackageInfo expected = pm.getPackageArchiveInfo(apk.getAbsolutePath(),
+                PackageManager.GET_ACTIVITIES | PackageManager.GET_SERVICES);
+        PluginManifest manifest = PluginManifest.parse(context, apk);
+        assertEquals(expected.packageName, manifest.mPackageInfo.packageName);
+        assertEquals(expected.activities.length, manifest.mPackageInfo.activities.length);
+    }
+}
@@ -0,0 +1,48 @@
+package com.mchenys.pluginloader.core;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.mchenys.pluginloader.Benchmark;
+import com.mchenys.pluginloader.core.hook.PLInstrumentation;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @Author: mChenys
+ * @Date: 2021/5/26
+ * @Description: PLInstrumentation.newActivity识别占坑Activity的基准测试,
+ * 对比原来用宿主ClassLoader加载类名、捕获ClassNotFoundException和现在直接查占坑类名
+ */
+@RunWith(AndroidJUnit4.class)
+public class StubActivityDetectionBenchmark {
+    private static final int ITERATIONS = 10000;
+
+    @Test
+    public void detectStubActivity() {
+        final ClassLoader cl = Benchmark.getTargetContext().getClassLoader();
+        final String stubActivity = String.format(StubActivityInfo.STUB_ACTIVITY_SINGLETASK, StubActivityInfo.corePackage, 1);
+
+        Benchmark.compare(ITERATIONS, "loadClass + ClassNotFoundException", new Benchmark.Op() {
+            @Override
+            public void run() {
+                try {
+                    cl.loadClass(stubActivity);
+                    throw new AssertionError(stubActivity + " should not have a class");
+                } catch (ClassNotFoundException e) {
+                    // 占坑Activity
+                }
+            }
+        }, "StubActivityInfo.isStubActivity", new Benchmark.Op() {
+            @Override
+            public void run() {
+                assertTrue(StubActivityInfo.isStubActivity(stubActivity));
+            }
+        });
+
+        assertFalse(StubActivityInfo.isStubActivity(PLInstrumentation.class.getName()));
+    }
+}
@@ -0,0 +1,58 @@
+package com.mchenys.pluginloader.core;
+
+import android.content.ComponentName;
+import android.content.pm.ActivityInfo;
+import android.content.res.Resources;
+import android.content.res.TypedArray;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.mchenys.pluginloader.Benchmark;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @Author: mChenys
+ * @Date: 2021/5/26
+ * @Description: 分配占坑Activity的基准测试, 对比原来每次启动都格式化类名、解析主题和现在热启动时查表
+ * <p>
+ * 标准启动模式的透明主题判断依赖已加载的插件, 这里用宿主的透明主题模拟原来每次都解析主题的开销
+ */
+@RunWith(AndroidJUnit4.class)
+public class StubActivityInfoBenchmark {
+    private static final int ITERATIONS = 100000;
+
+    @Test
+    public void dispatchWarmLaunch() {
+        final Resources resources = Benchmark.getTargetContext().getResources();
+        final StubActivityInfo stubActivityInfo = new StubActivityInfo();
+        final ComponentName component = new ComponentName("com.mchenys.plugina", "com.mchenys.plugina.SingleTopActivity");
+        final String first = stubActivityInfo.getStubActivity(component, ActivityInfo.LAUNCH_SINGLE_TOP, null, 0);
+
+        Benchmark.compare(ITERATIONS, "String.format + obtainStyledAttributes", new Benchmark.Op() {
+            @Override
+            public void run() {
+                String.format(StubActivityInfo.STUB_ACTIVITY_SINGLETOP, StubActivityInfo.corePackage, 1);
+                Resources.Theme theme = resources.newTheme();
+                theme.applyStyle(android.R.style.Theme_Translucent, true);
+                TypedArray array = theme.obtainStyledAttributes(new int[]{
+                        android.R.attr.windowIsTranslucent
+                });
+                array.getBoolean(0, false);
+                array.recycle();
+            }
+        }, "StubActivityInfo.getStubActivity", new Benchmark.Op() {
+            @Override
+            public void run() {
+                // 热启动返回预先生成的类名, 不会创建新的字符串
+                assertSame(first, stubActivityInfo.getStubActivity(component, ActivityInfo.LAUNCH_SINGLE_TOP, null, 0));
+            }
+        });
+
+        assertTrue(StubActivityInfo.isStubActivity(first));
+    }
+}
@@ -0,0 +1,54 @@
+package com.mchenys.pluginloader.utils;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.os.Build;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.mchenys.pluginloader.Benchmark;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * @Author: mChenys
+ * @Date: 2021/5/26
+ * @Description: FieldAccessor两种实现的基准测试, 以PLInstrumentation.injectActivity中每次启动都要修改的ContextWrapper.mBase为例
+ */
+@RunWith(AndroidJUnit4.class)
+public class FieldAccessorBenchmark {
+    private static final int ITERATIONS = 100000;
+
+    @Test
+    public void setFieldByBackend() throws Exception {
+        final Context context = Benchmark.getTargetContext();
+        final ContextWrapper wrapper = new ContextWrapper(null);
+        final FieldAccessor<Context> reflect = FieldAccessor.of(ContextWrapper.class, "mBase", FieldAccessor.BACKEND_REFLECT);
+        final FieldAccessor<Context> methodHandle = FieldAccessor.of(ContextWrapper.class, "mBase", FieldAccessor.BACKEND_METHOD_HANDLE);
+
+        Benchmark.compare(ITERATIONS, "FieldAccessor reflect", new Benchmark.Op() {
+            @Override
+            public void run() throws Exception {
+                reflect.set(wrapper, context);
+            }
+        }, "FieldAccessor method handle", new Benchmark.Op() {
+            @Override
+            public void run() throws Exception {
+                methodHandle.set(wrapper, context);
+            }
+        });
+
+        assertEquals(FieldAccessor.BACKEND_REFLECT, reflect.getBackend());
+        // api26以下退回反射
+        assertEquals(Build.VERSION.SDK_INT >= 26 ? FieldAccessor.BACKEND_METHOD_HANDLE : FieldAccessor.BACKEND_REFLECT,
+                methodHandle.getBackend());
+        reflect.set(wrapper, null);
+        methodHandle.set(wrapper, context);
+        assertSame(context, wrapper.getBaseContext());
+        assertSame(context, reflect.get(wrapper));
+    }
+}
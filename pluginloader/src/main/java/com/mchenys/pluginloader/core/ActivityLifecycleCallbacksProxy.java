@@ -3,103 +3,338 @@ package com.mchenys.pluginloader.core;
 import android.app.Activity;
 import android.app.Application;
 import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
 
 import com.mchenys.pluginloader.utils.ReflectUtils;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @Author: mChenys
  * @Date: 2021/5/12
  * @Description: 插件ActivityLifecycleCallbacks代理
+ * <p>
+ * 宿主Application的mActivityLifecycleCallbacks会被替换成{@link CallbackList}, 列表变化时才重新生成快照,
+ * 所有插件的代理共用同一个快照, 转发生命周期时不需要加锁和复制数组
  */
 public class ActivityLifecycleCallbacksProxy implements Application.ActivityLifecycleCallbacks {
+    private static final String TAG = Constants.TAG_PREFIX + "LifecycleCallbacksProxy";
+    private static final Application.ActivityLifecycleCallbacks[] EMPTY = new Application.ActivityLifecycleCallbacks[0];
 
-    final ArrayList<Application.ActivityLifecycleCallbacks> mActivityLifecycleCallbacks =
-            ReflectUtils.getFieldSlience("android.app.Application", ReflectUtils.getActivityThreadApplication(), "mActivityLifecycleCallbacks");
+    private static CallbackList sCallbackList;
+    // 替换失败时使用宿主原来的列表
+    private static ArrayList<Application.ActivityLifecycleCallbacks> sHostCallbacks;
 
-    Object[] collectActivityLifecycleCallbacks() {
-        if (mActivityLifecycleCallbacks == null) {
+    // 转发的生命周期事件数
+    private static final AtomicLong sDispatchCount = new AtomicLong();
+    // 统计转发速率的采样窗口
+    private static final long RATE_WINDOW = 10 * 1000;
+    private static final Object sRateLock = new Object();
+    // 当前采样窗口的开始时间和开始时的事件数, 转发时窗口到期才切换
+    private static volatile long sWindowStart = SystemClock.elapsedRealtime();
+    private static long sWindowStartCount;
+    // 上一个完整采样窗口的速率
+    private static float sLastRate;
+
+    final ArrayList<Application.ActivityLifecycleCallbacks> mActivityLifecycleCallbacks = getCallbackList();
+
+    /**
+     * 获取宿主的生命周期回调列表, 第一次调用时替换成{@link CallbackList}
+     *
+     * @return 替换失败时返回宿主原来的列表, 获取失败返回null
+     */
+    private static synchronized ArrayList<Application.ActivityLifecycleCallbacks> getCallbackList() {
+        if (sCallbackList != null) {
+            return sCallbackList;
+        }
+        if (sHostCallbacks != null) {
+            return sHostCallbacks;
+        }
+        Object host = ReflectUtils.getActivityThreadApplication();
+        ArrayList<Application.ActivityLifecycleCallbacks> callbacks =
+                ReflectUtils.getFieldSlience("android.app.Application", host, "mActivityLifecycleCallbacks");
+        if (callbacks == null) {
             return null;
         }
-        Object[] callbacks = null;
-        synchronized (mActivityLifecycleCallbacks) {
-            if (mActivityLifecycleCallbacks.size() > 0) {
-                callbacks = mActivityLifecycleCallbacks.toArray();
+        if (callbacks instanceof CallbackList) {
+            sCallbackList = (CallbackList) callbacks;
+            return sCallbackList;
+        }
+        CallbackList list = null;
+        synchronized (callbacks) {
+            try {
+                list = new CallbackList(callbacks);
+                ReflectUtils.setField(Application.class, host, "mActivityLifecycleCallbacks", list);
+                sCallbackList = list;
+            } catch (Exception e) {
+                Log.w(TAG, "replace mActivityLifecycleCallbacks failed", e);
+                list = null;
             }
         }
+        if (list != null) {
+            // 替换前已经读到旧列表的线程会在上面释放锁后修改旧列表, 替换后再同步一次
+            list.syncOrigin();
+            return list;
+        }
+        sHostCallbacks = callbacks;
         return callbacks;
     }
 
+    /**
+     * @return 转发过的生命周期事件总数
+     */
+    public static long getDispatchCount() {
+        return sDispatchCount.get();
+    }
+
+    /**
+     * 返回最近一个采样窗口内每秒转发的生命周期事件数, 只读取统计数据, 多处调用互不影响
+     *
+     * @return
+     */
+    public static float getDispatchRate() {
+        long now = SystemClock.elapsedRealtime();
+        long count = sDispatchCount.get();
+        synchronized (sRateLock) {
+            long elapsed = now - sWindowStart;
+            if (elapsed >= RATE_WINDOW) {
+                // 窗口到期后还没有新的事件来切换窗口, 按到现在为止计算
+                return (count - sWindowStartCount) * 1000f / elapsed;
+            }
+            return sLastRate;
+        }
+    }
+
+    private static void onDispatch() {
+        long count = sDispatchCount.incrementAndGet();
+        long now = SystemClock.elapsedRealtime();
+        if (now - sWindowStart < RATE_WINDOW) {
+            return;
+        }
+        synchronized (sRateLock) {
+            long elapsed = now - sWindowStart;
+            if (elapsed >= RATE_WINDOW) {
+                sLastRate = (count - sWindowStartCount) * 1000f / elapsed;
+                sWindowStartCount = count;
+                sWindowStart = now;
+            }
+        }
+    }
+
+    Application.ActivityLifecycleCallbacks[] collectActivityLifecycleCallbacks() {
+        if (mActivityLifecycleCallbacks == null) {
+            return EMPTY;
+        }
+        onDispatch();
+        if (mActivityLifecycleCallbacks instanceof CallbackList) {
+            return ((CallbackList) mActivityLifecycleCallbacks).snapshot();
+        }
+        synchronized (mActivityLifecycleCallbacks) {
+            return mActivityLifecycleCallbacks.isEmpty() ? EMPTY
+                    : mActivityLifecycleCallbacks.toArray(new Application.ActivityLifecycleCallbacks[mActivityLifecycleCallbacks.size()]);
+        }
+    }
+
     @Override
     public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
-        Object[] callbacks = collectActivityLifecycleCallbacks();
-        if (callbacks != null) {
-            for (int i = 0; i < callbacks.length; i++) {
-                ((Application.ActivityLifecycleCallbacks) callbacks[i]).onActivityCreated(activity,
-                        savedInstanceState);
-            }
+        Application.ActivityLifecycleCallbacks[] callbacks = collectActivityLifecycleCallbacks();
+        for (int i = 0; i < callbacks.length; i++) {
+            callbacks[i].onActivityCreated(activity, savedInstanceState);
         }
     }
 
     @Override
     public void onActivityStarted(Activity activity) {
-        Object[] callbacks = collectActivityLifecycleCallbacks();
-        if (callbacks != null) {
-            for (int i = 0; i < callbacks.length; i++) {
-                ((Application.ActivityLifecycleCallbacks) callbacks[i]).onActivityStarted(activity);
-            }
+        Application.ActivityLifecycleCallbacks[] callbacks = collectActivityLifecycleCallbacks();
+        for (int i = 0; i < callbacks.length; i++) {
+            callbacks[i].onActivityStarted(activity);
         }
     }
 
     @Override
     public void onActivityResumed(Activity activity) {
-        Object[] callbacks = collectActivityLifecycleCallbacks();
-        if (callbacks != null) {
-            for (int i = 0; i < callbacks.length; i++) {
-                ((Application.ActivityLifecycleCallbacks) callbacks[i]).onActivityResumed(activity);
-            }
+        Application.ActivityLifecycleCallbacks[] callbacks = collectActivityLifecycleCallbacks();
+        for (int i = 0; i < callbacks.length; i++) {
+            callbacks[i].onActivityResumed(activity);
         }
     }
 
     @Override
     public void onActivityPaused(Activity activity) {
-        Object[] callbacks = collectActivityLifecycleCallbacks();
-        if (callbacks != null) {
-            for (int i = 0; i < callbacks.length; i++) {
-                ((Application.ActivityLifecycleCallbacks) callbacks[i]).onActivityPaused(activity);
-            }
+        Application.ActivityLifecycleCallbacks[] callbacks = collectActivityLifecycleCallbacks();
+        for (int i = 0; i < callbacks.length; i++) {
+            callbacks[i].onActivityPaused(activity);
         }
     }
 
     @Override
     public void onActivityStopped(Activity activity) {
-        Object[] callbacks = collectActivityLifecycleCallbacks();
-        if (callbacks != null) {
-            for (int i = 0; i < callbacks.length; i++) {
-                ((Application.ActivityLifecycleCallbacks) callbacks[i]).onActivityStopped(activity);
-            }
+        Application.ActivityLifecycleCallbacks[] callbacks = collectActivityLifecycleCallbacks();
+        for (int i = 0; i < callbacks.length; i++) {
+            callbacks[i].onActivityStopped(activity);
         }
     }
 
     @Override
     public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
-        Object[] callbacks = collectActivityLifecycleCallbacks();
-        if (callbacks != null) {
-            for (int i = 0; i < callbacks.length; i++) {
-                ((Application.ActivityLifecycleCallbacks) callbacks[i]).onActivitySaveInstanceState(activity,
-                        outState);
-            }
+        Application.ActivityLifecycleCallbacks[] callbacks = collectActivityLifecycleCallbacks();
+        for (int i = 0; i < callbacks.length; i++) {
+            callbacks[i].onActivitySaveInstanceState(activity, outState);
         }
     }
 
     @Override
     public void onActivityDestroyed(Activity activity) {
-        Object[] callbacks = collectActivityLifecycleCallbacks();
-        if (callbacks != null) {
-            for (int i = 0; i < callbacks.length; i++) {
-                ((Application.ActivityLifecycleCallbacks) callbacks[i]).onActivityDestroyed(activity);
+        Application.ActivityLifecycleCallbacks[] callbacks = collectActivityLifecycleCallbacks();
+        for (int i = 0; i < callbacks.length; i++) {
+            callbacks[i].onActivityDestroyed(activity);
+        }
+    }
+
+    /**
+     * 替换宿主Application的mActivityLifecycleCallbacks, 宿主注册和注销回调时都会在锁内修改列表, 修改后丢弃快照
+     */
+    static final class CallbackList extends ArrayList<Application.ActivityLifecycleCallbacks> {
+        private volatile Application.ActivityLifecycleCallbacks[] mSnapshot;
+        // 被替换的宿主列表和上次同步时的内容
+        private final ArrayList<Application.ActivityLifecycleCallbacks> mOrigin;
+        private ArrayList<Application.ActivityLifecycleCallbacks> mOriginCopy;
+        private volatile int mOriginSize;
+
+        /**
+         * 调用方需要持有callbacks的锁
+         *
+         * @param callbacks 宿主原来的列表
+         */
+        CallbackList(ArrayList<Application.ActivityLifecycleCallbacks> callbacks) {
+            super(callbacks);
+            this.mOrigin = callbacks;
+            this.mOriginCopy = new ArrayList<>(callbacks);
+            this.mOriginSize = callbacks.size();
+        }
+
+        /**
+         * 把替换后在宿主旧列表上的注册和注销同步过来
+         */
+        void syncOrigin() {
+            synchronized (mOrigin) {
+                synchronized (this) {
+                    for (Application.ActivityLifecycleCallbacks callback : mOrigin) {
+                        if (!mOriginCopy.contains(callback)) {
+                            add(callback);
+                        }
+                    }
+                    for (Application.ActivityLifecycleCallbacks callback : mOriginCopy) {
+                        if (!mOrigin.contains(callback)) {
+                            remove(callback);
+                        }
+                    }
+                    mOriginCopy = new ArrayList<>(mOrigin);
+                    mOriginSize = mOrigin.size();
+                }
+            }
+        }
+
+        /**
+         * @return 当前回调的快照, 不能修改
+         */
+        Application.ActivityLifecycleCallbacks[] snapshot() {
+            if (mOrigin.size() != mOriginSize) {
+                // 替换时和旧列表的修改有竞争, 旧列表又变化了, 不能在持有自己的锁时同步
+                syncOrigin();
+            }
+            Application.ActivityLifecycleCallbacks[] snapshot = mSnapshot;
+            if (snapshot == null) {
+                synchronized (this) {
+                    snapshot = mSnapshot;
+                    if (snapshot == null) {
+                        snapshot = isEmpty() ? EMPTY : toArray(new Application.ActivityLifecycleCallbacks[size()]);
+                        mSnapshot = snapshot;
+                    }
+                }
             }
+            return snapshot;
+        }
+
+        private void invalidate() {
+            mSnapshot = null;
+        }
+
+        @Override
+        public boolean add(Application.ActivityLifecycleCallbacks callback) {
+            boolean changed = super.add(callback);
+            invalidate();
+            return changed;
+        }
+
+        @Override
+        public void add(int index, Application.ActivityLifecycleCallbacks callback) {
+            super.add(index, callback);
+            invalidate();
+        }
+
+        @Override
+        public boolean addAll(Collection<? extends Application.ActivityLifecycleCallbacks> c) {
+            boolean changed = super.addAll(c);
+            invalidate();
+            return changed;
+        }
+
+        @Override
+        public boolean addAll(int index, Collection<? extends Application.ActivityLifecycleCallbacks> c) {
+            boolean changed = super.addAll(index, c);
+            invalidate();
+            return changed;
+        }
+
+        @Override
+        public Application.ActivityLifecycleCallbacks set(int index, Application.ActivityLifecycleCallbacks callback) {
+            Application.ActivityLifecycleCallbacks old = super.set(index, callback);
+            invalidate();
+            return old;
+        }
+
+        @Override
+        public Application.ActivityLifecycleCallbacks remove(int index) {
+            Application.ActivityLifecycleCallbacks old = super.remove(index);
+            invalidate();
+            return old;
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            boolean changed = super.remove(o);
+            invalidate();
+            return changed;
+        }
+
+        @Override
+        public boolean removeAll(Collection<?> c) {
+            boolean changed = super.removeAll(c);
+            invalidate();
+            return changed;
+        }
+
+        @Override
+        public boolean retainAll(Collection<?> c) {
+            boolean changed = super.retainAll(c);
+            invalidate();
+            return changed;
+        }
+
+        @Override
+        protected void removeRange(int fromIndex, int toIndex) {
+            super.removeRange(fromIndex, toIndex);
+            invalidate();
+        }
+
+        @Override
+        public void clear() {
+            super.clear();
+            invalidate();
         }
     }
 }
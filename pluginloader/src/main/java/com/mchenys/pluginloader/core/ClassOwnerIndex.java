@@ -0,0 +1,160 @@
+package com.mchenys.pluginloader.core;
+
+import android.util.Log;
+
+import com.mchenys.pluginloader.utils.DexUtil;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import dalvik.system.DexFile;
+
+/**
+ * @Author: mChenys
+ * @Date: 2021/5/21
+ * @Description: 类名到所属插件和所在dex的索引, 插件加载时根据dex中的类名建立
+ * <p>
+ * 合并ClassLoader后宿主找不到的类会依次查找宿主和每个插件的dex, 通过索引直接从所在的dex加载,
+ * 定义类的ClassLoader和原来的查找方式一致: 合并时是宿主ClassLoader, 否则是插件ClassLoader
+ */
+public class ClassOwnerIndex {
+    private static final String TAG = Constants.TAG_PREFIX + "ClassOwnerIndex";
+
+    /**
+     * key=类名, value=所属插件和所在的dex
+     */
+    private final Map<String, Owner> mOwners = new ConcurrentHashMap<>();
+    /**
+     * key=插件包名, value=插件的所有类名, 卸载时使用
+     */
+    private final Map<String, List<String>> mPluginClasses = new ConcurrentHashMap<>();
+    private final ClassLoader mHostClassLoader;
+
+    /**
+     * @param hostClassLoader 宿主ClassLoader, 合并ClassLoader时插件的类由它定义
+     */
+    public ClassOwnerIndex(ClassLoader hostClassLoader) {
+        this.mHostClassLoader = hostClassLoader;
+    }
+
+    /**
+     * 加入插件的所有类, 在插件dex合并到宿主之后调用
+     *
+     * @param plugin
+     */
+    public void addPlugin(LoadedPlugin plugin) {
+        ClassLoader pluginClassLoader = plugin.getClassLoader();
+        try {
+            add(plugin.getPackageName(), plugin, Constants.COMBINE_CLASSLOADER ? mHostClassLoader : pluginClassLoader,
+                    DexUtil.getDexFiles(pluginClassLoader));
+        } catch (Exception e) {
+            // 没有索引时按原来的方式加载
+            Log.w(TAG, "index classes failed: " + plugin.getPackageName(), e);
+        }
+    }
+
+    /**
+     * 和合并后的dexElements顺序一致, 类名冲突时保留先加载的插件
+     *
+     * @param packageName
+     * @param plugin         所属插件
+     * @param definingLoader 定义类的ClassLoader
+     * @param dexFiles       插件的dex
+     */
+    synchronized void add(String packageName, LoadedPlugin plugin, ClassLoader definingLoader, List<DexFile> dexFiles) {
+        removePlugin(packageName);
+        List<String> classNames = new ArrayList<>();
+        for (DexFile dexFile : dexFiles) {
+            Owner owner = new Owner(packageName, plugin, definingLoader, dexFile);
+            Enumeration<String> entries = dexFile.entries();
+            while (entries.hasMoreElements()) {
+                String className = entries.nextElement();
+                if (!mOwners.containsKey(className)) {
+                    mOwners.put(className, owner);
+                    classNames.add(className);
+                }
+            }
+        }
+        mPluginClasses.put(packageName, classNames);
+    }
+
+    /**
+     * 移除插件的所有类
+     *
+     * @param packageName
+     */
+    public synchronized void removePlugin(String packageName) {
+        List<String> classNames = mPluginClasses.remove(packageName);
+        if (classNames == null) {
+            return;
+        }
+        for (int i = 0, size = classNames.size(); i < size; i++) {
+            mOwners.remove(classNames.get(i));
+        }
+    }
+
+    /**
+     * 查找类所属的插件
+     *
+     * @param className
+     * @return 不属于任何插件返回null
+     */
+    public LoadedPlugin findOwner(String className) {
+        Owner owner = mOwners.get(className);
+        return owner != null ? owner.plugin : null;
+    }
+
+    /**
+     * 从类所在的dex直接加载, 不用依次查找宿主和其他插件的dex, 已经加载过时返回已有的类
+     *
+     * @param packageName 类所属的插件包名, 不是这个插件的类不加载
+     * @param className
+     * @return 类不属于该插件或者加载失败时返回null, 调用者按原来的方式加载
+     */
+    public Class<?> loadClass(String packageName, String className) {
+        Owner owner = mOwners.get(className);
+        if (owner == null || !owner.packageName.equals(packageName)) {
+            return null;
+        }
+        try {
+            return owner.dexFile.loadClass(className, owner.definingLoader);
+        } catch (Throwable e) {
+            Log.w(TAG, "load " + className + " from dex failed", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return 索引中的类数量
+     */
+    public int size() {
+        return mOwners.size();
+    }
+
+    /**
+     * @param packageName
+     * @return 插件的所有类名, 和先加载的插件冲突的类不包含在内
+     */
+    public List<String> getClassNames(String packageName) {
+        List<String> classNames = mPluginClasses.get(packageName);
+        return classNames != null ? Collections.unmodifiableList(classNames) : Collections.<String>emptyList();
+    }
+
+    private static final class Owner {
+        final String packageName;
+        final LoadedPlugin plugin;
+        final ClassLoader definingLoader;
+        final DexFile dexFile;
+
+        Owner(String packageName, LoadedPlugin plugin, ClassLoader definingLoader, DexFile dexFile) {
+            this.packageName = packageName;
+            this.plugin = plugin;
+            this.definingLoader = definingLoader;
+            this.dexFile = dexFile;
+        }
+    }
+}
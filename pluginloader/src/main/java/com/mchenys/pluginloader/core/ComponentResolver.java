@@ -0,0 +1,175 @@
+package com.mchenys.pluginloader.core;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.content.pm.ResolveInfo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @Author: mChenys
+ * @Date: 2021/5/20
+ * @Description: 进程内所有插件Activity的索引, 启动Activity时不用再遍历每个插件
+ * <p>
+ * 插件加载和卸载时在锁内生成新的快照, 查询直接读volatile快照, 不需要加锁
+ */
+public class ComponentResolver {
+
+    private volatile Snapshot mSnapshot = new Snapshot();
+
+    /**
+     * 插件加载完成后加入索引, 同包名的旧插件会被替换
+     *
+     * @param plugin
+     */
+    public synchronized void addPlugin(LoadedPlugin plugin) {
+        Snapshot next = mSnapshot.copyWithout(plugin.getPackageName());
+        next.plugins.add(plugin);
+        for (ActivityInfo info : plugin.mPackageInfo.activities) {
+            Entry entry = new Entry(plugin, info);
+            next.activities.put(new ComponentName(plugin.getPackageName(), info.name), entry);
+            // 使用宿主包名启动时只能按类名查找, 类名冲突时保留先加载的插件
+            if (!next.hostActivities.containsKey(info.name)) {
+                next.hostActivities.put(info.name, entry);
+            }
+        }
+        for (String action : plugin.getIntentFilterIndex().getActions()) {
+            List<LoadedPlugin> list = next.actions.get(action);
+            if (list == null) {
+                list = new ArrayList<>();
+                next.actions.put(action, list);
+            }
+            list.add(plugin);
+        }
+        mSnapshot = next;
+    }
+
+    /**
+     * 插件卸载后移出索引
+     *
+     * @param packageName
+     */
+    public synchronized void removePlugin(String packageName) {
+        mSnapshot = mSnapshot.copyWithout(packageName);
+    }
+
+    /**
+     * 根据显式的ComponentName查找插件Activity
+     *
+     * @param component
+     * @return 插件中不存在返回null
+     */
+    public Entry findActivity(ComponentName component) {
+        return mSnapshot.activities.get(component);
+    }
+
+    /**
+     * 根据intent返回插件Activity的ResolveInfo
+     *
+     * @param intent
+     * @param flags
+     * @param hostPackageName 宿主包名, 显式intent的包名可以是宿主的
+     * @return
+     */
+    public ResolveInfo resolveActivity(Intent intent, int flags, String hostPackageName) {
+        Snapshot snapshot = mSnapshot;
+        ComponentName component = intent.getComponent();
+        if (component != null) {
+            Entry entry = hostPackageName.equals(component.getPackageName())
+                    ? snapshot.hostActivities.get(component.getClassName()) : snapshot.activities.get(component);
+            if (entry != null) {
+                ResolveInfo resolveInfo = new ResolveInfo();
+                resolveInfo.activityInfo = entry.info;
+                return resolveInfo;
+            }
+            return null;
+        }
+        String action = intent.getAction();
+        List<LoadedPlugin> candidates = action == null ? snapshot.plugins : snapshot.actions.get(action);
+        if (candidates == null) {
+            return null;
+        }
+        for (int i = 0, size = candidates.size(); i < size; i++) {
+            ResolveInfo resolveInfo = candidates.get(i).resolveActivity(intent, flags);
+            if (null != resolveInfo) {
+                return resolveInfo;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 插件Activity和所属插件
+     */
+    public static final class Entry {
+        public final LoadedPlugin plugin;
+        public final ActivityInfo info;
+
+        Entry(LoadedPlugin plugin, ActivityInfo info) {
+            this.plugin = plugin;
+            this.info = info;
+        }
+
+        /**
+         * @return 插件包名+Activity类名
+         */
+        public ComponentName getComponent() {
+            return new ComponentName(plugin.getPackageName(), info.name);
+        }
+    }
+
+    /**
+     * 发布后不再修改
+     */
+    private static final class Snapshot {
+        // 按加载顺序
+        final List<LoadedPlugin> plugins = new ArrayList<>();
+        // key=插件包名+Activity类名
+        final Map<ComponentName, Entry> activities = new HashMap<>();
+        // key=Activity类名, 用于以宿主包名启动的插件Activity
+        final Map<String, Entry> hostActivities = new HashMap<>();
+        // key=action, value=声明了该action的插件
+        final Map<String, List<LoadedPlugin>> actions = new HashMap<>();
+
+        Snapshot copyWithout(String packageName) {
+            Snapshot copy = new Snapshot();
+            for (LoadedPlugin plugin : plugins) {
+                if (!plugin.getPackageName().equals(packageName)) {
+                    copy.plugins.add(plugin);
+                }
+            }
+            for (Map.Entry<ComponentName, Entry> item : activities.entrySet()) {
+                if (!item.getKey().getPackageName().equals(packageName)) {
+                    copy.activities.put(item.getKey(), item.getValue());
+                }
+            }
+            // 被移除的类名重新由剩下的插件按加载顺序补上
+            for (LoadedPlugin plugin : copy.plugins) {
+                for (ActivityInfo info : plugin.mPackageInfo.activities) {
+                    if (!copy.hostActivities.containsKey(info.name)) {
+                        copy.hostActivities.put(info.name,
+                                copy.activities.get(new ComponentName(plugin.getPackageName(), info.name)));
+                    }
+                }
+            }
+            for (Map.Entry<String, List<LoadedPlugin>> item : actions.entrySet()) {
+                List<LoadedPlugin> list = new ArrayList<>(item.getValue());
+                Iterator<LoadedPlugin> iterator = list.iterator();
+                while (iterator.hasNext()) {
+                    if (iterator.next().getPackageName().equals(packageName)) {
+                        iterator.remove();
+                    }
+                }
+                if (!list.isEmpty()) {
+                    copy.actions.put(item.getKey(), list);
+                }
+            }
+            return copy;
+        }
+    }
+}
@@ -1,17 +1,21 @@
 package com.mchenys.pluginloader.core;
 
 import android.app.Activity;
+import android.app.Application;
 import android.app.Service;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.ActivityInfo;
 import android.content.pm.ResolveInfo;
-import android.content.res.Resources;
+import android.os.Bundle;
 import android.os.IBinder;
 import android.util.ArrayMap;
 import android.util.Log;
 
+import com.mchenys.pluginloader.utils.PluginUtil;
+
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -62,41 +66,112 @@ public class ComponentsHandler {
      * @param intent
      */
     public void markIntentIfNeeded(Intent intent) {
-        if (intent.getComponent() == null) {
+        ComponentName component = intent.getComponent();
+        if (component == null) {
             return;
         }
 
-        String targetPackageName = intent.getComponent().getPackageName();
-        String targetClassName = intent.getComponent().getClassName();
+        String targetPackageName = component.getPackageName();
+        String targetClassName = component.getClassName();
         // search map and return specific launchmode stub activity
-        if (!targetPackageName.equals(mHostContext.getPackageName()) && mPluginManager.getLoadedPlugin(targetPackageName) != null) {
+        if (!targetPackageName.equals(mHostContext.getPackageName()) && mPluginManager.ensurePluginLoaded(targetPackageName) != null) {
+            ComponentResolver.Entry entry = mPluginManager.getComponentResolver().findActivity(component);
+            if (entry == null) {
+                throw new RuntimeException("can not find " + component);
+            }
             intent.putExtra(Constants.KEY_IS_PLUGIN, true);
             intent.putExtra(Constants.KEY_TARGET_PACKAGE, targetPackageName);
             intent.putExtra(Constants.KEY_TARGET_CLASS, targetClassName);
             // 选择合适的占坑Activity
-            dispatchStubActivity(intent);
+            dispatchStubActivity(intent, entry.plugin, entry.info);
         }
     }
 
+    /**
+     * 监听插件Activity的创建和销毁, 插件Activity全部销毁后归还占坑Activity
+     * <p>
+     * 插件Activity的生命周期通过插件Application中的{@link ActivityLifecycleCallbacksProxy}转发给宿主
+     *
+     * @param application 宿主Application
+     */
+    public void registerStubLifecycleCallbacks(Application application) {
+        application.registerActivityLifecycleCallbacks(new Application.ActivityLifecycleCallbacks() {
+            @Override
+            public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+                ComponentResolver.Entry entry = getPluginActivityEntry(activity);
+                if (entry != null) {
+                    mStubActivityInfo.onActivityCreated(entry.getComponent(), entry.info.launchMode,
+                            activity.getComponentName().getClassName());
+                }
+            }
+
+            @Override
+            public void onActivityStarted(Activity activity) {
+            }
+
+            @Override
+            public void onActivityResumed(Activity activity) {
+            }
+
+            @Override
+            public void onActivityPaused(Activity activity) {
+            }
+
+            @Override
+            public void onActivityStopped(Activity activity) {
+            }
+
+            @Override
+            public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+            }
+
+            @Override
+            public void onActivityDestroyed(Activity activity) {
+                ComponentResolver.Entry entry = getPluginActivityEntry(activity);
+                if (entry != null) {
+                    mStubActivityInfo.onActivityDestroyed(entry.getComponent(), entry.info.launchMode, activity.isChangingConfigurations());
+                }
+            }
+        });
+    }
+
+    /**
+     * @param activity
+     * @return 插件Activity按包名和类名查到的索引项, 不是插件Activity返回null
+     */
+    private ComponentResolver.Entry getPluginActivityEntry(Activity activity) {
+        Intent intent = activity.getIntent();
+        if (!PluginUtil.isIntentFromPlugin(intent)) {
+            return null;
+        }
+        return mPluginManager.getComponentResolver().findActivity(PluginUtil.getComponent(intent));
+    }
+
+    /**
+     * 返回占坑Activity的使用情况
+     *
+     * @return
+     */
+    public List<StubActivityInfo.StubPoolStats> getStubActivityStats() {
+        return mStubActivityInfo.getStats();
+    }
+
     /**
      * 根据intent选择合适占位Activity
      *
      * @param intent
+     * @param loadedPlugin 目标Activity所在的插件
+     * @param info         目标Activity的ActivityInfo
      */
-    private void dispatchStubActivity(Intent intent) {
-        ComponentName component = intent.getComponent();
-        String targetClassName = intent.getComponent().getClassName();
-        LoadedPlugin loadedPlugin = mPluginManager.getLoadedPlugin(intent);
-        ActivityInfo info = loadedPlugin.getActivityInfo(component);
-        if (info == null) {
-            throw new RuntimeException("can not find " + component);
-        }
+    private void dispatchStubActivity(Intent intent, LoadedPlugin loadedPlugin, ActivityInfo info) {
+        ComponentName target = intent.getComponent();
+        String targetClassName = target.getClassName();
         int launchMode = info.launchMode;
-        Resources.Theme themeObj = loadedPlugin.getResources().newTheme();
-        themeObj.applyStyle(info.theme, true);
-        // 获取占坑Activity的类名
-        String stubActivity = mStubActivityInfo.getStubActivity(targetClassName, launchMode, themeObj);
-        Log.e(TAG, String.format("dispatchStubActivity,[%s -> %s]", targetClassName, stubActivity));
+        // 获取占坑Activity的类名, 主题是否透明由插件缓存, 不用每次创建Theme
+        String stubActivity = mStubActivityInfo.getStubActivity(target, launchMode, loadedPlugin, info.theme);
+        if (Constants.DEBUG) {
+            Log.e(TAG, String.format("dispatchStubActivity,[%s -> %s]", targetClassName, stubActivity));
+        }
         // 设置启动的占坑Activity
         intent.setClassName(mHostContext, stubActivity);
     }
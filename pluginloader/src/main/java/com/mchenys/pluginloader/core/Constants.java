@@ -16,10 +16,20 @@ public class Constants {
 
     public static final String PLUGIN_DIR = "pluginDir";
     public static final String NATIVE_DIR = "pluginLib";
+    public static final String NATIVE_STORE_DIR = "pluginLibStore";
     public static final String OPTIMIZE_DIR = "odex";
+    public static final String MANIFEST_DIR = "pluginManifest";
 
     public static final boolean COMBINE_RESOURCES = true;
     public static final boolean COMBINE_CLASSLOADER = true;
+    // 插件Application延迟到第一次使用插件组件时创建
+    public static final boolean LAZY_APPLICATION = false;
+    // 启动时只读取已安装插件的清单, 第一次用到插件组件时再加载插件
+    public static final boolean LAZY_LOAD_PLUGIN = false;
+    // 延迟创建时, 主线程空闲时提前创建插件Application
+    public static final boolean WARM_UP_APPLICATION_ON_IDLE = false;
+    // 子线程等待主线程创建插件Application的超时时间, ms
+    public static final long APPLICATION_TIMEOUT = 10 * 1000;
     public static final boolean DEBUG = true;
 
     public static final String TAG = "PL";
@@ -0,0 +1,357 @@
+package com.mchenys.pluginloader.core;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.mchenys.pluginloader.utils.ReflectUtils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import dalvik.system.DexClassLoader;
+
+/**
+ * @Author: mChenys
+ * @Date: 2021/5/24
+ * @Description: 插件dex预优化, 插件安装后在低优先级线程提前完成dex优化, 真正加载时不用再等待
+ * <p>
+ * 优化完成后在odex目录写入记录, apk和系统版本都没变并且优化结果文件还在时认为优化结果有效
+ * <p>
+ * 加载线程等待后台优化时, 临时把优化线程提到等待线程的优先级, 避免优先级反转; 后台还没开始时由加载线程创建插件ClassLoader时完成优化
+ * <p>
+ * api29及以上应用进程不再调用dex2oat, 所有操作都是空操作
+ */
+public class DexOptimizer {
+    private static final String TAG = Constants.TAG_PREFIX + "DexOptimizer";
+
+    private static final String SUFFIX = ".opt";
+
+    // 只用一个线程, 避免和插件加载争抢io
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+                    sWorkerTid = Process.myTid();
+                    runnable.run();
+                }
+            }, "PluginDexOpt");
+        }
+    });
+    // 优化线程的tid, 线程还没启动时为0
+    private static volatile int sWorkerTid;
+    // 正在等待后台优化的线程数, 最后一个等待结束时恢复优化线程的优先级
+    private static int sWaiterCount;
+    /**
+     * 正在优化的插件, key=插件包路径
+     */
+    private static final Map<String, OptimizeTask> sTasks = new ConcurrentHashMap<>();
+
+    /**
+     * 在后台预优化, 已经优化过或者正在优化时不做任何操作
+     * <p>
+     * api29开始应用进程不再调用dex2oat, 创建ClassLoader不会留下可复用的优化结果, 不做预优化
+     *
+     * @param context
+     * @param apk
+     */
+    public static void schedule(Context context, File apk) {
+        if (!isSupported() || getOptimizeCost(context, apk) >= 0) {
+            return;
+        }
+        FutureTask<Long> task = obtainTask(context, apk);
+        sExecutor.execute(task);
+    }
+
+    /**
+     * 加载插件前调用, 正在后台优化时等待完成
+     * <p>
+     * 后台还没开始优化时取消后台任务, 由调用方创建插件ClassLoader时顺带完成优化, 同一个apk不会创建两次ClassLoader
+     *
+     * @param context
+     * @param apk
+     * @return 优化耗时ms, 之前已经优化过时返回记录的耗时; 需要调用方优化时返回-1, 创建ClassLoader后调用{@link #onOptimized}
+     * @throws Exception
+     */
+    public static long awaitOptimized(Context context, File apk) throws Exception {
+        if (!isSupported()) {
+            return -1;
+        }
+        long cost = getOptimizeCost(context, apk);
+        if (cost >= 0) {
+            return cost;
+        }
+        OptimizeTask task = claimTask(apk);
+        if (task == null) {
+            return -1;
+        }
+        // 正在后台优化, 等待期间提高优化线程的优先级
+        boostWorker();
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        } finally {
+            unboostWorker();
+        }
+    }
+
+    /**
+     * 调用方创建ClassLoader完成优化后记录耗时
+     *
+     * @param context
+     * @param apk
+     * @param cost    创建ClassLoader的耗时ms
+     */
+    public static void onOptimized(Context context, File apk, long cost) {
+        if (!isSupported()) {
+            return;
+        }
+        try {
+            writeRecord(context, apk, cost);
+        } catch (IOException e) {
+            Log.w(TAG, "write optimize record failed: " + apk.getName(), e);
+        }
+        Log.d(TAG, "optimize " + apk.getName() + " +" + cost + "ms");
+    }
+
+    /**
+     * api29及以上应用进程不再生成优化结果, 预优化和优化记录都不生效
+     *
+     * @return
+     */
+    private static boolean isSupported() {
+        return Build.VERSION.SDK_INT < 29;
+    }
+
+    /**
+     * 把优化线程提到当前线程的优先级
+     */
+    private static void boostWorker() {
+        synchronized (DexOptimizer.class) {
+            sWaiterCount++;
+            int tid = sWorkerTid;
+            if (tid == 0) {
+                return;
+            }
+            try {
+                int priority = Process.getThreadPriority(Process.myTid());
+                // nice值越小优先级越高, 只提高不降低
+                if (priority < Process.getThreadPriority(tid)) {
+                    Process.setThreadPriority(tid, priority);
+                }
+            } catch (Exception e) {
+                Log.w(TAG, "boost dexopt thread failed", e);
+            }
+        }
+    }
+
+    /**
+     * 没有线程等待时恢复优化线程的优先级
+     */
+    private static void unboostWorker() {
+        synchronized (DexOptimizer.class) {
+            if (sWaiterCount == 0 || --sWaiterCount > 0) {
+                return;
+            }
+            int tid = sWorkerTid;
+            if (tid == 0) {
+                return;
+            }
+            try {
+                Process.setThreadPriority(tid, Process.THREAD_PRIORITY_LOWEST);
+            } catch (Exception e) {
+                Log.w(TAG, "restore dexopt thread priority failed", e);
+            }
+        }
+    }
+
+    /**
+     * 返回记录的优化耗时
+     *
+     * @param context
+     * @param apk
+     * @return 没有优化过, 记录已失效或者api29及以上返回-1
+     */
+    public static long getOptimizeCost(Context context, File apk) {
+        if (!isSupported()) {
+            return -1;
+        }
+        File record = getRecordFile(context, apk);
+        if (!record.exists()) {
+            return -1;
+        }
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new FileInputStream(record));
+            if (!Build.FINGERPRINT.equals(input.readUTF())
+                    || input.readLong() != apk.length()
+                    || input.readLong() != apk.lastModified()) {
+                return -1;
+            }
+            long cost = input.readLong();
+            // 优化结果被系统或者用户清理后记录失效
+            File optimizedFile = getOptimizedFile(context, apk);
+            if (optimizedFile == null || !optimizedFile.exists()) {
+                return -1;
+            }
+            return cost;
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            closeQuietly(input);
+        }
+    }
+
+    /**
+     * 删除优化记录, 卸载插件时调用
+     *
+     * @param context
+     * @param apk
+     */
+    public static void remove(Context context, File apk) {
+        getRecordFile(context, apk).delete();
+    }
+
+    private static synchronized FutureTask<Long> obtainTask(final Context context, final File apk) {
+        final String key = apk.getAbsolutePath();
+        OptimizeTask task = sTasks.get(key);
+        if (task != null) {
+            return task;
+        }
+        final AtomicBoolean claimed = new AtomicBoolean();
+        task = new OptimizeTask(new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                if (!claimed.compareAndSet(false, true)) {
+                    // 加载线程已经接管, 由它创建ClassLoader时优化
+                    return -1L;
+                }
+                try {
+                    return doOptimize(context, apk);
+                } finally {
+                    sTasks.remove(key);
+                }
+            }
+        }, claimed);
+        sTasks.put(key, task);
+        return task;
+    }
+
+    /**
+     * 接管还在排队的后台任务
+     *
+     * @param apk
+     * @return 后台正在优化时返回该任务, 没有任务或者已经接管时返回null
+     */
+    private static synchronized OptimizeTask claimTask(File apk) {
+        String key = apk.getAbsolutePath();
+        OptimizeTask task = sTasks.get(key);
+        if (task != null && task.mClaimed.compareAndSet(false, true)) {
+            sTasks.remove(key);
+            return null;
+        }
+        return task;
+    }
+
+    private static long doOptimize(Context context, File apk) throws IOException {
+        // 任务排队期间可能已经被其他线程优化过
+        long cost = getOptimizeCost(context, apk);
+        if (cost >= 0) {
+            return cost;
+        }
+        long startTime = SystemClock.elapsedRealtime();
+        File dexOutputDir = context.getDir(Constants.OPTIMIZE_DIR, Context.MODE_PRIVATE);
+        // 创建ClassLoader时会完成dex优化, 结果保存在odex目录, 之后加载直接使用
+        new DexClassLoader(apk.getAbsolutePath(), dexOutputDir.getAbsolutePath(), null, context.getClassLoader());
+        cost = SystemClock.elapsedRealtime() - startTime;
+        writeRecord(context, apk, cost);
+        Log.d(TAG, "optimize " + apk.getName() + " +" + cost + "ms");
+        return cost;
+    }
+
+    private static void writeRecord(Context context, File apk, long cost) throws IOException {
+        File record = getRecordFile(context, apk);
+        File tmpFile = new File(record.getAbsolutePath() + ".tmp");
+        DataOutputStream output = new DataOutputStream(new FileOutputStream(tmpFile));
+        try {
+            output.writeUTF(Build.FINGERPRINT);
+            output.writeLong(apk.length());
+            output.writeLong(apk.lastModified());
+            output.writeLong(cost);
+        } finally {
+            output.close();
+        }
+        if (!tmpFile.renameTo(record)) {
+            tmpFile.delete();
+        }
+    }
+
+    /**
+     * 返回优化结果文件, api26以下在odex目录中, api26到28系统忽略odex目录, 结果在apk所在目录的oat/&lt;isa&gt;/中
+     *
+     * @param context
+     * @param apk
+     * @return 无法确定时返回null, 此时优化记录按失效处理
+     */
+    private static File getOptimizedFile(Context context, File apk) {
+        String name = apk.getName();
+        int dot = name.lastIndexOf('.');
+        String baseName = dot > 0 ? name.substring(0, dot) : name;
+        if (Build.VERSION.SDK_INT < 26) {
+            // 和DexPathList.optimizedPathFor一致
+            return new File(context.getDir(Constants.OPTIMIZE_DIR, Context.MODE_PRIVATE), baseName + ".dex");
+        }
+        try {
+            String isa = (String) ReflectUtils.invokeStaticMethod(Class.forName("dalvik.system.VMRuntime"), "getCurrentInstructionSet");
+            return new File(apk.getParentFile(), "oat" + File.separator + isa + File.separator + baseName + ".odex");
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static File getRecordFile(Context context, File apk) {
+        File dir = context.getDir(Constants.OPTIMIZE_DIR, Context.MODE_PRIVATE);
+        return new File(dir, apk.getName() + SUFFIX);
+    }
+
+    private static void closeQuietly(DataInputStream input) {
+        if (input != null) {
+            try {
+                input.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * 后台线程开始执行或者加载线程接管时置位mClaimed, 两者只有一方能成功
+     */
+    private static final class OptimizeTask extends FutureTask<Long> {
+        private final AtomicBoolean mClaimed;
+
+        OptimizeTask(Callable<Long> callable, AtomicBoolean claimed) {
+            super(callable);
+            this.mClaimed = claimed;
+        }
+    }
+}
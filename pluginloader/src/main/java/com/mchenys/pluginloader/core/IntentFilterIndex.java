@@ -0,0 +1,293 @@
+package com.mchenys.pluginloader.core;
+
+import android.content.ContentResolver;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ActivityInfo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * @Author: mChenys
+ * @Date: 2021/5/20
+ * @Description: 插件Activity的intent-filter索引, 插件加载时建立
+ * <p>
+ * 和系统IntentResolver类似分级缩小范围: 先按action, 再按data(scheme或MIME主类型), 最后按category, 只对剩下的intent-filter调用match
+ */
+public class IntentFilterIndex {
+    private static final String TAG = Constants.TAG_PREFIX + "IntentFilterIndex";
+
+    // MIME类型为*或*/*的intent-filter
+    private static final String WILDCARD_TYPE = "*";
+
+    private static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry o1, Entry o2) {
+            return o1.order < o2.order ? -1 : (o1.order == o2.order ? 0 : 1);
+        }
+    };
+
+    /**
+     * key=action, value=声明了该action的intent-filter
+     */
+    private final Map<String, DataLevel> mActionIndex = new HashMap<>();
+    /**
+     * 所有intent-filter, 用于没有action的intent
+     */
+    private final DataLevel mAllEntries = new DataLevel();
+
+    /**
+     * @param activityIntentFilters key=Activity类名, value=该Activity的intent-filter
+     * @param activityInfos         key=Activity类名
+     */
+    public IntentFilterIndex(Map<String, List<IntentFilter>> activityIntentFilters, Map<String, ActivityInfo> activityInfos) {
+        int order = 0;
+        for (Map.Entry<String, List<IntentFilter>> item : activityIntentFilters.entrySet()) {
+            ActivityInfo info = activityInfos.get(item.getKey());
+            if (info == null) {
+                continue;
+            }
+            for (IntentFilter filter : item.getValue()) {
+                Entry entry = new Entry(info, filter, order++);
+                mAllEntries.add(entry);
+                for (int i = 0; i < filter.countActions(); i++) {
+                    String action = filter.getAction(i);
+                    DataLevel level = mActionIndex.get(action);
+                    if (level == null) {
+                        level = new DataLevel();
+                        mActionIndex.put(action, level);
+                    }
+                    level.add(entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * 查询匹配intent的Activity, 每个Activity只返回一次
+     *
+     * @param resolver
+     * @param intent
+     * @param resolve  是否需要resolve intent的MIME类型
+     * @return 按清单文件中的顺序
+     */
+    public List<ActivityInfo> query(ContentResolver resolver, Intent intent, boolean resolve) {
+        List<Entry> candidates = getCandidates(resolver, intent, resolve);
+        if (candidates.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<ActivityInfo> result = new ArrayList<>();
+        for (int i = 0, size = candidates.size(); i < size; i++) {
+            Entry entry = candidates.get(i);
+            // 同一个Activity的intent-filter是连续的,已经匹配过的跳过
+            if (!result.isEmpty() && result.get(result.size() - 1) == entry.activityInfo) {
+                continue;
+            }
+            if (entry.filter.match(resolver, intent, resolve, TAG) >= 0) {
+                result.add(entry.activityInfo);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 返回第一个匹配intent的Activity, 匹配规则和{@link #query}一致
+     *
+     * @param resolver
+     * @param intent
+     * @param resolve
+     * @return 没有匹配返回null
+     */
+    public ActivityInfo queryFirst(ContentResolver resolver, Intent intent, boolean resolve) {
+        List<Entry> candidates = getCandidates(resolver, intent, resolve);
+        for (int i = 0, size = candidates.size(); i < size; i++) {
+            Entry entry = candidates.get(i);
+            if (entry.filter.match(resolver, intent, resolve, TAG) >= 0) {
+                return entry.activityInfo;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return 索引中的所有action
+     */
+    public Iterable<String> getActions() {
+        return mActionIndex.keySet();
+    }
+
+    /**
+     * 返回可能匹配intent的intent-filter, 不在结果中的一定不匹配
+     *
+     * @return 按清单文件中的顺序
+     */
+    private List<Entry> getCandidates(ContentResolver resolver, Intent intent, boolean resolve) {
+        String action = intent.getAction();
+        DataLevel level = action == null ? mAllEntries : mActionIndex.get(action);
+        if (level == null) {
+            return Collections.emptyList();
+        }
+        String type = resolve ? intent.resolveType(resolver) : intent.getType();
+        Set<String> categories = intent.getCategories();
+        String category = categories == null || categories.isEmpty() ? null : categories.iterator().next();
+
+        List<List<Entry>> lists = new ArrayList<>(3);
+        String scheme = intent.getScheme();
+        if (scheme == null && type == null) {
+            addCandidates(lists, level.noData, category);
+        }
+        // 和IntentFilter.matchData一致, 没有data时按空scheme匹配
+        addCandidates(lists, level.schemes.get(scheme != null ? scheme : ""), category);
+        if (type != null && (scheme == null || "content".equals(scheme) || "file".equals(scheme))) {
+            // 只声明了MIME类型的intent-filter只匹配没有scheme或者content,file
+            String baseType = getBaseType(type);
+            if (WILDCARD_TYPE.equals(baseType)) {
+                for (CategoryLevel typeLevel : level.types.values()) {
+                    addCandidates(lists, typeLevel, category);
+                }
+            } else {
+                addCandidates(lists, level.types.get(baseType), category);
+                addCandidates(lists, level.types.get(WILDCARD_TYPE), category);
+            }
+        }
+        if (lists.isEmpty()) {
+            return Collections.emptyList();
+        }
+        if (lists.size() == 1) {
+            return lists.get(0);
+        }
+        return merge(lists);
+    }
+
+    private static void addCandidates(List<List<Entry>> lists, CategoryLevel level, String category) {
+        if (level == null) {
+            return;
+        }
+        List<Entry> list = level.get(category);
+        if (list != null && !list.isEmpty()) {
+            lists.add(list);
+        }
+    }
+
+    /**
+     * 合并多个分组的结果, 去重并恢复清单文件中的顺序
+     */
+    private static List<Entry> merge(List<List<Entry>> lists) {
+        List<Entry> result = new ArrayList<>();
+        for (List<Entry> list : lists) {
+            result.addAll(list);
+        }
+        Collections.sort(result, ORDER);
+        Entry last = null;
+        for (int i = result.size() - 1; i >= 0; i--) {
+            Entry entry = result.get(i);
+            if (entry == last) {
+                result.remove(i);
+            }
+            last = entry;
+        }
+        return result;
+    }
+
+    /**
+     * @param type image/png, image/*或者intent-filter中保存的image
+     * @return MIME主类型
+     */
+    private static String getBaseType(String type) {
+        int slash = type.indexOf('/');
+        return slash >= 0 ? type.substring(0, slash) : type;
+    }
+
+    /**
+     * data级索引
+     */
+    private static final class DataLevel {
+        // 没有声明scheme和MIME类型的intent-filter
+        final CategoryLevel noData = new CategoryLevel();
+        // key=scheme
+        final Map<String, CategoryLevel> schemes = new HashMap<>();
+        // key=MIME主类型, 只声明了MIME类型没有声明scheme的intent-filter
+        final Map<String, CategoryLevel> types = new HashMap<>();
+
+        void add(Entry entry) {
+            IntentFilter filter = entry.filter;
+            int schemeCount = filter.countDataSchemes();
+            int typeCount = filter.countDataTypes();
+            if (schemeCount == 0 && typeCount == 0) {
+                noData.add(entry);
+                return;
+            }
+            for (int i = 0; i < schemeCount; i++) {
+                obtain(schemes, filter.getDataScheme(i)).add(entry);
+            }
+            if (schemeCount == 0) {
+                for (int i = 0; i < typeCount; i++) {
+                    CategoryLevel level = obtain(types, getBaseType(filter.getDataType(i)));
+                    // 同一个intent-filter的多个类型可能有相同的主类型
+                    if (!level.contains(entry)) {
+                        level.add(entry);
+                    }
+                }
+            }
+        }
+
+        private static CategoryLevel obtain(Map<String, CategoryLevel> map, String key) {
+            CategoryLevel level = map.get(key);
+            if (level == null) {
+                level = new CategoryLevel();
+                map.put(key, level);
+            }
+            return level;
+        }
+    }
+
+    /**
+     * category级索引, intent的category必须全部在intent-filter中, 所以只需要查intent的任意一个category
+     */
+    private static final class CategoryLevel {
+        final List<Entry> all = new ArrayList<>();
+        // key=category
+        final Map<String, List<Entry>> categories = new HashMap<>();
+
+        void add(Entry entry) {
+            all.add(entry);
+            IntentFilter filter = entry.filter;
+            for (int i = 0; i < filter.countCategories(); i++) {
+                String category = filter.getCategory(i);
+                List<Entry> list = categories.get(category);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    categories.put(category, list);
+                }
+                list.add(entry);
+            }
+        }
+
+        boolean contains(Entry entry) {
+            return !all.isEmpty() && all.get(all.size() - 1) == entry;
+        }
+
+        List<Entry> get(String category) {
+            return category == null ? all : categories.get(category);
+        }
+    }
+
+    private static final class Entry {
+        final ActivityInfo activityInfo;
+        final IntentFilter filter;
+        // 在清单文件中的顺序
+        final int order;
+
+        Entry(ActivityInfo activityInfo, IntentFilter filter, int order) {
+            this.activityInfo = activityInfo;
+            this.filter = filter;
+            this.order = order;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.mchenys.pluginloader.core;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ActivityInfo;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * @Author: mChenys
+ * @Date: 2021/5/24
+ * @Description: 已安装但还没加载的插件, 只保存清单中的包名、Activity和action,
+ * 第一次用到插件的组件时再创建完整的LoadedPlugin, 见{@link Constants#LAZY_LOAD_PLUGIN}
+ */
+public class LazyPluginRegistry {
+
+    private static final class Record {
+        final File apk;
+        final PluginManifest manifest;
+
+        Record(File apk, PluginManifest manifest) {
+            this.apk = apk;
+            this.manifest = manifest;
+        }
+    }
+
+    // key=包名
+    private final Map<String, Record> mRecords = new HashMap<>();
+    // 插件包名+Activity类名
+    private final Set<ComponentName> mActivities = new HashSet<>();
+    // key=Activity类名, value=包名, 用于以宿主包名启动的插件Activity, 类名冲突时保留先登记的插件
+    private final Map<String, String> mHostActivities = new HashMap<>();
+    // key=action, value=声明了该action的插件包名
+    private final Map<String, Set<String>> mActions = new HashMap<>();
+
+    /**
+     * 登记还没加载的插件
+     *
+     * @param apk
+     * @param manifest
+     */
+    public synchronized void register(File apk, PluginManifest manifest) {
+        String packageName = manifest.mPackageInfo.packageName;
+        remove(packageName);
+        mRecords.put(packageName, new Record(apk, manifest));
+        if (manifest.mPackageInfo.activities != null) {
+            for (ActivityInfo info : manifest.mPackageInfo.activities) {
+                mActivities.add(new ComponentName(packageName, info.name));
+                if (!mHostActivities.containsKey(info.name)) {
+                    mHostActivities.put(info.name, packageName);
+                }
+            }
+        }
+        for (List<IntentFilter> filters : manifest.getActivityIntentFilters().values()) {
+            for (IntentFilter filter : filters) {
+                for (int i = 0; i < filter.countActions(); i++) {
+                    Set<String> packages = mActions.get(filter.getAction(i));
+                    if (packages == null) {
+                        packages = new LinkedHashSet<>();
+                        mActions.put(filter.getAction(i), packages);
+                    }
+                    packages.add(packageName);
+                }
+            }
+        }
+    }
+
+    /**
+     * 插件加载或卸载后移除
+     *
+     * @param packageName
+     */
+    public synchronized void remove(String packageName) {
+        if (mRecords.remove(packageName) == null) {
+            return;
+        }
+        Iterator<ComponentName> iterator = mActivities.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().getPackageName().equals(packageName)) {
+                iterator.remove();
+            }
+        }
+        mHostActivities.values().removeAll(Collections.singleton(packageName));
+        for (Set<String> packages : mActions.values()) {
+            packages.remove(packageName);
+        }
+    }
+
+    /**
+     * @param packageName
+     * @return 插件包, 不存在返回null
+     */
+    public synchronized File getApk(String packageName) {
+        Record record = mRecords.get(packageName);
+        return record != null ? record.apk : null;
+    }
+
+    /**
+     * @return 所有还没加载的插件包名
+     */
+    public synchronized List<String> getPackageNames() {
+        return new ArrayList<>(mRecords.keySet());
+    }
+
+    /**
+     * 查找intent可能用到的还没加载的插件
+     *
+     * @param intent
+     * @param hostPackageName 宿主包名, 显式intent的包名可以是宿主的
+     * @return 包名
+     */
+    public synchronized Collection<String> findPackages(Intent intent, String hostPackageName) {
+        if (mRecords.isEmpty()) {
+            return new ArrayList<>();
+        }
+        List<String> result = new ArrayList<>();
+        ComponentName component = intent.getComponent();
+        if (component != null) {
+            if (hostPackageName.equals(component.getPackageName())) {
+                String packageName = mHostActivities.get(component.getClassName());
+                if (packageName != null) {
+                    result.add(packageName);
+                }
+            } else if (mActivities.contains(component)) {
+                result.add(component.getPackageName());
+            }
+            return result;
+        }
+        String action = intent.getAction();
+        if (action != null) {
+            if (mActions.containsKey(action)) {
+                result.addAll(mActions.get(action));
+            }
+        } else if (intent.getPackage() != null && mRecords.containsKey(intent.getPackage())) {
+            result.add(intent.getPackage());
+        }
+        // 没有action也没有指定包名时无法判断属于哪个插件, 不为此加载所有插件, 只在已加载的插件中查找
+        return result;
+    }
+}
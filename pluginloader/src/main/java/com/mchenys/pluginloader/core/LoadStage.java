@@ -0,0 +1,29 @@
+package com.mchenys.pluginloader.core;
+
+/**
+ * @Author: mChenys
+ * @Date: 2021/5/18
+ * @Description: 插件加载的各个阶段
+ */
+public enum LoadStage {
+    /**
+     * 解析apk的AndroidManifest
+     */
+    PARSE,
+    /**
+     * 创建插件Resources
+     */
+    RESOURCES,
+    /**
+     * 创建ClassLoader, 包括dex优化
+     */
+    DEXOPT,
+    /**
+     * 拷贝so
+     */
+    NATIVE_LIB,
+    /**
+     * 在主线程创建插件Application
+     */
+    APPLICATION
+}
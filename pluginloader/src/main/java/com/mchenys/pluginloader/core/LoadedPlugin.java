@@ -8,26 +8,40 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.pm.ActivityInfo;
 import android.content.pm.PackageInfo;
-import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.content.res.AssetManager;
 import android.content.res.Resources;
+import android.content.res.TypedArray;
 import android.os.Build;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.SparseBooleanArray;
 
 import androidx.viewpager2.widget.MarginPageTransformer;
 
+import com.mchenys.pluginloader.utils.ApkNativeLibs;
 import com.mchenys.pluginloader.utils.DexUtil;
+import com.mchenys.pluginloader.utils.NativeLibStore;
 import com.mchenys.pluginloader.utils.PluginUtil;
 import com.mchenys.pluginloader.utils.ReflectUtils;
 import com.mchenys.pluginloader.utils.RunUtils;
 
 import java.io.File;
-import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import dalvik.system.DexClassLoader;
 
@@ -39,34 +53,247 @@ import dalvik.system.DexClassLoader;
 public class LoadedPlugin {
     public static final String TAG = Constants.TAG_PREFIX + "LoadedPlugin";
 
+    // 等待在主线程空闲时创建Application的插件
+    private static final List<LoadedPlugin> sWarmUpQueue = new ArrayList<>();
+    // 是否已经添加了IdleHandler
+    private static boolean sWarmUpScheduled;
+
+    private static final Runnable sAddWarmUpHandler = new Runnable() {
+        @Override
+        public void run() {
+            Looper.myQueue().addIdleHandler(sWarmUpHandler);
+        }
+    };
+
+    private static final MessageQueue.IdleHandler sWarmUpHandler = new MessageQueue.IdleHandler() {
+        @Override
+        public boolean queueIdle() {
+            LoadedPlugin plugin;
+            synchronized (sWarmUpQueue) {
+                if (sWarmUpQueue.isEmpty()) {
+                    sWarmUpScheduled = false;
+                    return false;
+                }
+                plugin = sWarmUpQueue.remove(0);
+            }
+            // 已经被卸载或者被重新加载的插件不再创建
+            if (plugin.mPluginManager.getLoadedPlugin(plugin.getPackageName()) == plugin) {
+                plugin.ensureApplication();
+            }
+            synchronized (sWarmUpQueue) {
+                if (sWarmUpQueue.isEmpty()) {
+                    sWarmUpScheduled = false;
+                    return false;
+                }
+            }
+            // 消息队列一直空闲时IdleHandler不会再被调用, 发一个消息等到下一次空闲再创建下一个
+            RunUtils.postOnUiThread(sAddWarmUpHandler);
+            return false;
+        }
+    };
+
     public final String mLocation;
     public PluginManager mPluginManager;
     public Context mHostContext;
     public Context mPluginContext;
     public final File mNativeLibDir;
-    public final Object mPackage; // PackageParser.Package
+    public final String mInPlaceLibPath; // 直接从apk加载so的路径"apk!/lib/abi", 需要解压时为null
+    public final Object mPackage; // PackageParser.Package, 从清单缓存加载时为null
+    public final PluginManifest mManifest;
     public final PackageInfo mPackageInfo;
     public Resources mResources;
     public ClassLoader mClassLoader;
-    public Application mApplication; // 插件的Application
+    public volatile Application mApplication; // 插件的Application
     public Intent mLaunchIntent;
     public Map<ComponentName, ActivityInfo> mActivityInfos; // 插件包的ActivityInfo
-
-    private LoadedPlugin(PluginManager pluginManager, Context context, PackageInfo packageInfo, File apk) throws Exception {
+    private IntentFilterIndex mIntentFilterIndex; // 插件Activity的intent-filter索引
+    private long mDexOptCost = -1; // dex优化耗时ms, 可能是之前预优化时记录的
+    private volatile boolean mAttached; // 是否已经保存到PluginManager
+    private final SparseBooleanArray mTranslucentThemes = new SparseBooleanArray(); // key=主题id, value=是否透明
+    // 各加载阶段的耗时,单位ms
+    private final Map<LoadStage, Long> mStageCosts = Collections.synchronizedMap(new EnumMap<LoadStage, Long>(LoadStage.class));
+
+    private LoadedPlugin(PluginManager pluginManager, final Context context, PluginManifest manifest, long parseCost, final File apk, final PluginLoadCallback callback) throws Exception {
+        long startTime = SystemClock.elapsedRealtime();
+        this.mStageCosts.put(LoadStage.PARSE, parseCost);
         this.mPluginManager = pluginManager;
         this.mHostContext = context;
         this.mLocation = apk.getAbsolutePath();
-        this.mPackage = PackageParserCompat.parsePackage(context, apk, PackageParserCompat.PARSE_MUST_BE_APK);
-        this.mPackageInfo = packageInfo;
+        this.mManifest = manifest;
+        this.mPackage = manifest.mPackage;
+        this.mPackageInfo = manifest.mPackageInfo;
         this.mPluginContext = createPluginContext(null);
         this.mNativeLibDir = getDir(context, Constants.NATIVE_DIR);
-        this.mResources = createResources(context, apk);
-        this.mClassLoader = createClassLoader(context, apk, this.mNativeLibDir, context.getClassLoader());
-        this.mLaunchIntent = getLaunchIntent();
+        this.mInPlaceLibPath = ApkNativeLibs.getInPlaceLibraryPath(apk);
+        // DexPathList会丢掉不存在的so目录, 拷贝so和创建ClassLoader并行执行, 所以先创建好插件的so目录
+        File pluginLibDir = getPluginLibDir();
+        if (!pluginLibDir.isDirectory() && !pluginLibDir.mkdirs()) {
+            Log.w(TAG, "create plugin lib dir failed: " + pluginLibDir);
+        }
+
+        // 资源、dex优化、so拷贝互不依赖, 并行执行, 只有Application需要在主线程串行创建
+        // 这些阶段都不修改宿主, 合并dex和资源在所有阶段成功后由publish完成, 见{@link #publish}
+        FutureTask<Resources> resourcesStage = Constants.COMBINE_RESOURCES ? null
+                : newStage(LoadStage.RESOURCES, callback, new Callable<Resources>() {
+            @Override
+            public Resources call() throws Exception {
+                return createResources(context, apk);
+            }
+        });
+        FutureTask<ClassLoader> dexStage = newStage(LoadStage.DEXOPT, callback, new Callable<ClassLoader>() {
+            @Override
+            public ClassLoader call() throws Exception {
+                return createClassLoader(context, apk, mNativeLibDir, context.getClassLoader());
+            }
+        });
+        FutureTask<Object> nativeLibStage = newStage(LoadStage.NATIVE_LIB, callback, new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                tryToCopyNativeLib(apk);
+                return null;
+            }
+        });
+        FutureTask<?>[] stages = {resourcesStage, dexStage, nativeLibStage};
+        Executor executor = RunUtils.getThreadPool();
+        executor.execute(dexStage);
+        executor.execute(nativeLibStage);
+        try {
+            if (resourcesStage != null) {
+                this.mResources = awaitStage(resourcesStage);
+            }
+            this.mClassLoader = awaitStage(dexStage);
+            awaitStage(nativeLibStage);
+        } catch (Exception e) {
+            for (FutureTask<?> stage : stages) {
+                if (stage != null) {
+                    stage.cancel(false);
+                }
+            }
+            throw e;
+        }
         this.mActivityInfos = getActivityInfo(mPackageInfo);
-        tryToCopyNativeLib(apk);
-        invokeApplication();
-        Log.e(TAG, "mResources:" + mResources.hashCode());
+        this.mIntentFilterIndex = createIntentFilterIndex(mManifest, mPackageInfo);
+        this.mLaunchIntent = getLaunchIntent();
+        Log.e(TAG, "prepare " + getPackageName() + " cost " + (SystemClock.elapsedRealtime() - startTime)
+                + "ms, stages:" + mStageCosts);
+    }
+
+    /**
+     * 把插件的dex和资源合并到宿主, 只在插件所有加载阶段都成功后调用, 加载失败的插件不会修改宿主
+     * <p>
+     * 多个插件一起合并时宿主的dexElements只替换一次
+     *
+     * @param context  宿主Context
+     * @param plugins  已经完成各加载阶段的插件
+     * @param callbacks 和plugins一一对应的回调, 可以为null
+     * @throws Exception
+     */
+    static void publish(Context context, List<LoadedPlugin> plugins, List<PluginLoadCallback> callbacks) throws Exception {
+        if (plugins.isEmpty()) {
+            return;
+        }
+        if (Constants.COMBINE_CLASSLOADER) {
+            try {
+                if (plugins.size() == 1) {
+                    // 同时加载的单个插件在DexUtil中合并成一次替换
+                    LoadedPlugin plugin = plugins.get(0);
+                    DexUtil.insertDex((DexClassLoader) plugin.mClassLoader, context.getClassLoader(), plugin.getPluginLibDir());
+                } else {
+                    List<DexClassLoader> loaders = new ArrayList<>();
+                    List<File> libDirs = new ArrayList<>();
+                    for (LoadedPlugin plugin : plugins) {
+                        loaders.add((DexClassLoader) plugin.mClassLoader);
+                        libDirs.add(plugin.getPluginLibDir());
+                    }
+                    DexUtil.insertDex(loaders, context.getClassLoader(), libDirs);
+                }
+            } catch (Exception e) {
+                throw new PluginLoadException(PluginLoadException.Reason.STAGE_FAILED, LoadStage.DEXOPT, e);
+            }
+        }
+        if (Constants.COMBINE_RESOURCES) {
+            long start = SystemClock.elapsedRealtime();
+            List<File> apks = new ArrayList<>();
+            for (LoadedPlugin plugin : plugins) {
+                apks.add(new File(plugin.mLocation));
+            }
+            Resources resources = ResourcesManager.createMergeResources(context, apks);
+            long cost = SystemClock.elapsedRealtime() - start;
+            for (int i = 0; i < plugins.size(); i++) {
+                LoadedPlugin plugin = plugins.get(i);
+                plugin.mResources = resources;
+                plugin.onStageComplete(LoadStage.RESOURCES, cost, callbacks == null ? null : callbacks.get(i));
+            }
+        }
+    }
+
+    /**
+     * 插件发布后创建Application, 延迟创建时在主线程空闲时预热
+     *
+     * @param callback
+     * @throws PluginLoadException
+     */
+    void startApplication(PluginLoadCallback callback) throws PluginLoadException {
+        if (!Constants.LAZY_APPLICATION) {
+            invokeApplication();
+            if (null != callback) {
+                callback.onStageComplete(LoadStage.APPLICATION, mStageCosts.get(LoadStage.APPLICATION));
+            }
+        } else if (Constants.WARM_UP_APPLICATION_ON_IDLE) {
+            scheduleApplicationWarmUp();
+        }
+    }
+
+    /**
+     * 创建加载阶段的任务, 执行完后记录耗时
+     *
+     * @param stage
+     * @param callback
+     * @param work
+     * @return
+     */
+    private <T> FutureTask<T> newStage(final LoadStage stage, final PluginLoadCallback callback, final Callable<T> work) {
+        return new FutureTask<>(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                long start = SystemClock.elapsedRealtime();
+                T result;
+                try {
+                    result = work.call();
+                } catch (Exception e) {
+                    throw new PluginLoadException(PluginLoadException.Reason.STAGE_FAILED, stage, e);
+                }
+                onStageComplete(stage, SystemClock.elapsedRealtime() - start, callback);
+                return result;
+            }
+        });
+    }
+
+    /**
+     * 等待加载阶段完成, 如果线程池还没开始执行就直接在当前线程执行, 避免线程池繁忙时互相等待
+     *
+     * @param stage
+     * @return
+     * @throws Exception
+     */
+    static <T> T awaitStage(FutureTask<T> stage) throws Exception {
+        stage.run();
+        try {
+            return stage.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private void onStageComplete(LoadStage stage, long costMillis, PluginLoadCallback callback) {
+        mStageCosts.put(stage, costMillis);
+        if (null != callback) {
+            callback.onStageComplete(stage, costMillis);
+        }
     }
 
     /**
@@ -79,35 +306,120 @@ public class LoadedPlugin {
      * @return
      */
     public static LoadedPlugin create(PluginManager pluginManager, Context context, File apk, boolean forceLoad) throws Exception {
-        PackageInfo packageInfo = getPackageInfo(context, apk);
-        String packageName = packageInfo.packageName;
-        Map<String, LoadedPlugin> pluginMap = pluginManager.getLoadedPlugins();
-        LoadedPlugin loadedPlugin = pluginMap.get(packageName);
-        if (loadedPlugin == null || forceLoad) {
-            loadedPlugin = new LoadedPlugin(pluginManager, context, packageInfo, apk);
-            pluginMap.put(packageName, loadedPlugin);
+        return create(pluginManager, context, apk, forceLoad, null);
+    }
+
+    /**
+     * 创建插件包
+     *
+     * @param pluginManager
+     * @param context
+     * @param apk
+     * @param forceLoad     强制加载
+     * @param callback      接收各加载阶段的耗时,可以为null
+     * @return
+     */
+    public static LoadedPlugin create(PluginManager pluginManager, Context context, File apk, boolean forceLoad, PluginLoadCallback callback) throws Exception {
+        return create(pluginManager, context, apk, forceLoad, callback, null);
+    }
+
+    /**
+     * 创建插件包, 修改宿主前检查任务是否已经取消, 已取消时丢弃准备好的插件, 宿主不会被修改
+     *
+     * @param pluginManager
+     * @param context
+     * @param apk
+     * @param forceLoad     强制加载
+     * @param callback      接收各加载阶段的耗时,可以为null
+     * @param task          加载任务, 可以为null
+     * @return
+     * @throws Exception 已取消时抛出{@link PluginLoadException.Reason#CANCELLED}
+     */
+    static LoadedPlugin create(PluginManager pluginManager, Context context, File apk, boolean forceLoad,
+                               PluginLoadCallback callback, PluginLoadScheduler.LoadTask task) throws Exception {
+        checkCancelled(task);
+        LoadedPlugin loadedPlugin = prepare(pluginManager, context, apk, forceLoad, callback);
+        if (!loadedPlugin.isAttached()) {
+            if (task != null && !task.commit()) {
+                // 准备期间被取消, 还没有修改宿主, 直接丢弃
+                throw new PluginLoadException(PluginLoadException.Reason.CANCELLED, "加载已取消");
+            }
+            publish(context, Collections.singletonList(loadedPlugin), Collections.singletonList(callback));
+            loadedPlugin.attach(callback);
         }
         return loadedPlugin;
     }
 
+    private static void checkCancelled(PluginLoadScheduler.LoadTask task) throws PluginLoadException {
+        if (task != null && task.isCancelled()) {
+            throw new PluginLoadException(PluginLoadException.Reason.CANCELLED, "加载已取消");
+        }
+    }
+
     /**
-     * 获取插件包的PackageInfo
+     * 解析插件并完成各加载阶段, 不修改宿主, 需要再调用{@link #publish}和{@link #attach}
      *
+     * @param pluginManager
      * @param context
      * @param apk
-     * @return
+     * @param forceLoad     强制加载
+     * @param callback      接收各加载阶段的耗时,可以为null
+     * @return 插件已经加载过并且不强制加载时返回已有的插件, 见{@link #isAttached()}
      * @throws Exception
      */
-    private static PackageInfo getPackageInfo(Context context, File apk) throws Exception {
-       /* return context.getPackageManager().getPackageArchiveInfo(apk.getAbsolutePath(),
-                PackageManager.GET_ACTIVITIES |
-                        PackageManager.GET_RECEIVERS |
-                        PackageManager.GET_PROVIDERS |
-                        PackageManager.GET_SERVICES);*/
-        return context.getPackageManager().getPackageArchiveInfo(apk.getAbsolutePath(),
-                PackageManager.GET_ACTIVITIES | PackageManager.GET_SERVICES);
+    static LoadedPlugin prepare(PluginManager pluginManager, Context context, File apk, boolean forceLoad, PluginLoadCallback callback) throws Exception {
+        Map<String, LoadedPlugin> pluginMap = pluginManager.getLoadedPlugins();
+        if (!forceLoad) {
+            // 同一个apk已经加载过时不需要再解析
+            String location = apk.getAbsolutePath();
+            for (LoadedPlugin plugin : pluginMap.values()) {
+                if (location.equals(plugin.mLocation)) {
+                    return plugin;
+                }
+            }
+        }
+        // 只解析一次apk, PackageInfo从解析结果中生成, 清单缓存有效时不再解析
+        PluginManifest manifest;
+        PluginLoadScheduler.acquireIo();
+        // 不计算等待io的时间
+        long parseStart = SystemClock.elapsedRealtime();
+        try {
+            manifest = PluginManifest.obtain(context, apk);
+        } catch (Exception e) {
+            throw new PluginLoadException(PluginLoadException.Reason.STAGE_FAILED, LoadStage.PARSE, e);
+        } finally {
+            PluginLoadScheduler.releaseIo();
+        }
+        long parseCost = SystemClock.elapsedRealtime() - parseStart;
+        if (null != callback) {
+            callback.onStageComplete(LoadStage.PARSE, parseCost);
+        }
+        LoadedPlugin loadedPlugin = pluginMap.get(manifest.mPackageInfo.packageName);
+        if (loadedPlugin == null || forceLoad) {
+            loadedPlugin = new LoadedPlugin(pluginManager, context, manifest, parseCost, apk, callback);
+        }
+        return loadedPlugin;
+    }
+
+    /**
+     * 发布后保存到PluginManager并创建Application
+     *
+     * @param callback
+     * @throws PluginLoadException
+     */
+    void attach(PluginLoadCallback callback) throws PluginLoadException {
+        mAttached = true;
+        mPluginManager.putLoadedPlugin(this);
+        startApplication(callback);
+        Log.e(TAG, "mResources:" + mResources.hashCode() + ", loaded " + getPackageName() + ", stages:" + mStageCosts);
     }
 
+    /**
+     * @return 是否已经保存到PluginManager
+     */
+    boolean isAttached() {
+        return mAttached;
+    }
 
     private File getDir(Context context, String name) {
         return context.getDir(name, Context.MODE_PRIVATE);
@@ -124,14 +436,24 @@ public class LoadedPlugin {
      * @throws Exception
      */
     private ClassLoader createClassLoader(Context context, File apk, File libsDir, ClassLoader parent) throws Exception {
+        // 已经预优化过时直接使用优化结果, 正在后台优化时等待完成
+        long dexOptCost = DexOptimizer.awaitOptimized(context, apk);
         File dexOutputDir = getDir(context, Constants.OPTIMIZE_DIR);
         String dexOutputPath = dexOutputDir.getAbsolutePath();
-        DexClassLoader pluginClassLoader = new DexClassLoader(apk.getAbsolutePath(), dexOutputPath, libsDir.getAbsolutePath(), parent);
-
-        if (Constants.COMBINE_CLASSLOADER) {
-            DexUtil.insertDex(pluginClassLoader, parent, libsDir);
+        // 只查找插件自己目录中的so, 不会加载到其他插件的同名so
+        String librarySearchPath = getPluginLibDir().getAbsolutePath();
+        if (mInPlaceLibPath != null) {
+            librarySearchPath = mInPlaceLibPath + File.pathSeparator + librarySearchPath;
+        }
+        long startTime = SystemClock.elapsedRealtime();
+        ClassLoader classLoader = new DexClassLoader(apk.getAbsolutePath(), dexOutputPath, librarySearchPath, parent);
+        if (dexOptCost < 0) {
+            // 没有预优化, 创建ClassLoader时完成了优化
+            dexOptCost = SystemClock.elapsedRealtime() - startTime;
+            DexOptimizer.onOptimized(context, apk, dexOptCost);
         }
-        return pluginClassLoader;
+        this.mDexOptCost = dexOptCost;
+        return classLoader;
     }
 
     /**
@@ -156,15 +478,10 @@ public class LoadedPlugin {
      * @throws Exception
      */
     private Resources createResources(Context context, File apk) throws Exception {
-        if (Constants.COMBINE_RESOURCES) {
-            // 合并资源
-            return ResourcesManager.createMergeResources(context, apk);
-        } else {
-            // 返回插件的资源
-            Resources hostResources = context.getResources();
-            AssetManager assetManager = createAssetManager(apk);
-            return new Resources(assetManager, hostResources.getDisplayMetrics(), hostResources.getConfiguration());
-        }
+        // 合并资源时在publish中处理, 这里返回插件自己的资源
+        Resources hostResources = context.getResources();
+        AssetManager assetManager = createAssetManager(apk);
+        return new Resources(assetManager, hostResources.getDisplayMetrics(), hostResources.getConfiguration());
     }
 
     /**
@@ -174,6 +491,10 @@ public class LoadedPlugin {
      * @throws Exception
      */
     private void tryToCopyNativeLib(File apk) throws Exception {
+        if (mInPlaceLibPath != null) {
+            Log.d(TAG, "load so in place: " + mInPlaceLibPath);
+            return;
+        }
         PluginUtil.copyNativeLib(apk, mHostContext, mPackageInfo, mNativeLibDir);
     }
 
@@ -184,26 +505,64 @@ public class LoadedPlugin {
         return new PluginContext(this, context);
     }
 
-    // 执行插件Application#onCreate
-    private void invokeApplication() throws Exception {
-        final Exception[] temp = new Exception[1];
+    /**
+     * 主线程空闲时创建插件Application, 插件组件已经用到时不会重复创建
+     * <p>
+     * 所有插件排队, 每次空闲只创建一个, 创建完再等下一次空闲, 避免一次空闲中执行所有插件的Application#onCreate
+     */
+    private void scheduleApplicationWarmUp() {
+        synchronized (sWarmUpQueue) {
+            sWarmUpQueue.add(this);
+            if (sWarmUpScheduled) {
+                return;
+            }
+            sWarmUpScheduled = true;
+        }
+        RunUtils.runOnUiThread(sAddWarmUpHandler);
+    }
+
+    /**
+     * 确保插件Application已经创建, 延迟创建时在第一次使用插件组件前调用
+     *
+     * @return 创建失败返回null
+     */
+    public Application ensureApplication() {
+        if (mApplication == null) {
+            try {
+                invokeApplication();
+            } catch (Exception e) {
+                Log.e(TAG, "create application failed: " + getPackageName(), e);
+            }
+        }
+        return mApplication;
+    }
+
+    /**
+     * 在主线程执行插件Application#onCreate, 子线程最多等待{@link Constants#APPLICATION_TIMEOUT}
+     *
+     * @throws PluginLoadException 创建失败或者等待超时
+     */
+    private void invokeApplication() throws PluginLoadException {
         // make sure application's callback is run on ui thread.
-        RunUtils.runOnUiThread(new Runnable() {
+        // 多个插件同时加载时合并到同一个主线程消息中创建
+        Future<Application> future = RunUtils.submitOnUiThreadCoalesced(new Callable<Application>() {
             @Override
-            public void run() {
-                if (mApplication != null) {
-                    return;
-                }
-                try {
+            public Application call() throws Exception {
+                if (mApplication == null) {
+                    long startTime = SystemClock.elapsedRealtime();
                     mApplication = makeApplication(false, mPluginManager.getInstrumentation());
-                } catch (Exception e) {
-                    temp[0] = e;
+                    mStageCosts.put(LoadStage.APPLICATION, SystemClock.elapsedRealtime() - startTime);
                 }
+                return mApplication;
             }
-        }, true);
-
-        if (temp[0] != null) {
-            throw temp[0];
+        });
+        try {
+            RunUtils.await(future, Constants.APPLICATION_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            Log.e(TAG, "create application timeout: " + getPackageName());
+            throw new PluginLoadException(PluginLoadException.Reason.STAGE_FAILED, LoadStage.APPLICATION, e);
+        } catch (Exception e) {
+            throw new PluginLoadException(PluginLoadException.Reason.STAGE_FAILED, LoadStage.APPLICATION, e);
         }
     }
 
@@ -218,9 +577,7 @@ public class LoadedPlugin {
         }
         Object activityThread = null;
         try {
-            Field mThread = Class.forName("android.app.Instrumentation").getDeclaredField("mThread");
-            mThread.setAccessible(true);
-            activityThread = mThread.get(instrumentation);
+            activityThread = ReflectUtils.getField(Instrumentation.class, instrumentation, "mThread");
         } catch (Exception e) {
         }
         if (activityThread == null) {
@@ -239,6 +596,21 @@ public class LoadedPlugin {
     }
 
 
+    /**
+     * 建立intent-filter索引
+     *
+     * @param manifest
+     * @param packageInfo
+     * @return
+     */
+    private IntentFilterIndex createIntentFilterIndex(PluginManifest manifest, PackageInfo packageInfo) {
+        Map<String, ActivityInfo> activityInfos = new HashMap<>();
+        for (ActivityInfo activity : packageInfo.activities) {
+            activityInfos.put(activity.name, activity);
+        }
+        return new IntentFilterIndex(manifest.getActivityIntentFilters(), activityInfos);
+    }
+
     /**
      * 封装ActivityInfo
      *
@@ -254,6 +626,19 @@ public class LoadedPlugin {
     }
 
 
+    /**
+     * 返回各加载阶段的耗时
+     *
+     * @return key=加载阶段, value=耗时ms
+     */
+    public Map<LoadStage, Long> getStageCosts() {
+        Map<LoadStage, Long> costs = new EnumMap<>(LoadStage.class);
+        synchronized (mStageCosts) {
+            costs.putAll(mStageCosts);
+        }
+        return costs;
+    }
+
     /**
      * 返回插件包路径
      *
@@ -301,6 +686,35 @@ public class LoadedPlugin {
         return theme;
     }
 
+    /**
+     * 主题是否是透明的, 结果按主题id缓存, 同一个主题只解析一次
+     *
+     * @param themeResId
+     * @return
+     */
+    public boolean isTranslucentTheme(int themeResId) {
+        synchronized (mTranslucentThemes) {
+            int index = mTranslucentThemes.indexOfKey(themeResId);
+            if (index >= 0) {
+                return mTranslucentThemes.valueAt(index);
+            }
+        }
+        Resources.Theme theme = this.mResources.newTheme();
+        theme.applyStyle(themeResId, true);
+        TypedArray array = theme.obtainStyledAttributes(new int[]{
+                android.R.attr.windowIsTranslucent
+        });
+        boolean translucent = array.getBoolean(0, false);
+        array.recycle();
+        if (Constants.DEBUG) {
+            Log.e(TAG, "theme 0x" + Integer.toHexString(themeResId) + " is transparent ? " + translucent);
+        }
+        synchronized (mTranslucentThemes) {
+            mTranslucentThemes.put(themeResId, translucent);
+        }
+        return translucent;
+    }
+
     /**
      * 更新Resource
      *
@@ -347,7 +761,7 @@ public class LoadedPlugin {
     }
 
     /**
-     * 插件的Application
+     * 插件的Application, 延迟创建时还没创建返回null, 需要创建时调用{@link #ensureApplication()}
      *
      * @return
      */
@@ -362,35 +776,40 @@ public class LoadedPlugin {
      * @return
      */
     public Intent getLaunchIntent() {
-        try {
-            ContentResolver resolver = this.mPluginContext.getContentResolver();
-            Intent launcher = new Intent(Intent.ACTION_MAIN).addCategory(Intent.CATEGORY_LAUNCHER);
-            ArrayList/*ArrayList<Activity>*/ activities = ReflectUtils.getField(this.mPackage, "activities");
-            for (Object/*PackageParser.Activity*/ activity : activities) {
-                ArrayList/*ArrayList<ActivityIntentInfo>*/ intents = ReflectUtils.getField(Class.forName("android.content.pm.PackageParser$Component"), activity, "intents");
-                if (null != intents) {
-                    for (Object/*PackageParser.ActivityIntentInfo*/ intentInfo : intents) {
-
-                        boolean match = (int) ReflectUtils.invokeMethod(Class.forName("android.content.IntentFilter"), intentInfo, "match", new Class[]{
-                                Class.forName("android.content.ContentResolver"),
-                                Class.forName("android.content.Intent"),
-                                boolean.class,
-                                String.class
-                        }, resolver, launcher, false, TAG) > 0;
-                        if (match) {
-                            return Intent.makeMainActivity((ComponentName) ReflectUtils.invokeMethod(Class.forName("android.content.pm.PackageParser$Component"), activity, "getComponentName", null));
-                        }
-
-                    }
-                }
-
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
+        ContentResolver resolver = this.mPluginContext.getContentResolver();
+        Intent launcher = new Intent(Intent.ACTION_MAIN).addCategory(Intent.CATEGORY_LAUNCHER);
+        ActivityInfo info = mIntentFilterIndex.queryFirst(resolver, launcher, false);
+        if (info != null) {
+            return Intent.makeMainActivity(new ComponentName(getPackageName(), info.name));
         }
         return null;
     }
 
+    /**
+     * 返回dex优化耗时
+     *
+     * @return ms, 插件预优化过时是预优化的耗时
+     */
+    public long getDexOptCost() {
+        return mDexOptCost;
+    }
+
+    /**
+     * @return 插件自己的so目录
+     */
+    File getPluginLibDir() {
+        return NativeLibStore.getPluginLibDir(mNativeLibDir, mPackageInfo.packageName);
+    }
+
+    /**
+     * 插件Activity的intent-filter索引
+     *
+     * @return
+     */
+    public IntentFilterIndex getIntentFilterIndex() {
+        return mIntentFilterIndex;
+    }
+
     //=====================根据intent返回ResolveInfo==============================================
     public ResolveInfo resolveActivity(Intent intent, int flags) {
         List<ResolveInfo> query = this.queryIntentActivities(intent, flags);
@@ -430,27 +849,10 @@ public class LoadedPlugin {
                 }
             }
         } else {
-            try {
-                ArrayList/*ArrayList<Activity>*/ activities = ReflectUtils.getField(this.mPackage, "activities");
-                for (Object/*PackageParser.Activity*/ activity : activities) {
-                    ArrayList/*ArrayList<ActivityIntentInfo>*/ intents = ReflectUtils.getField(Class.forName("android.content.pm.PackageParser$Component"), activity, "intents");
-                    for (Object/*PackageParser.ActivityIntentInfo*/ intentInfo : intents) {
-                        boolean match = (int) ReflectUtils.invokeMethod(Class.forName("android.content.IntentFilter"), intentInfo, "match", new Class[]{
-                                Class.forName("android.content.ContentResolver"),
-                                Class.forName("android.content.Intent"),
-                                boolean.class,
-                                String.class
-                        }, resolver, intent, true, TAG) >= 0;
-                        if (match) {
-                            ResolveInfo resolveInfo = new ResolveInfo();
-                            resolveInfo.activityInfo = ReflectUtils.getField(Class.forName("android.content.pm.PackageParser$Activity"), activity, "info");
-                            resolveInfos.add(resolveInfo);
-                            break;
-                        }
-                    }
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
+            for (ActivityInfo info : mIntentFilterIndex.query(resolver, intent, true)) {
+                ResolveInfo resolveInfo = new ResolveInfo();
+                resolveInfo.activityInfo = info;
+                resolveInfos.add(resolveInfo);
             }
         }
         return resolveInfos;
@@ -0,0 +1,149 @@
+package com.mchenys.pluginloader.core;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.os.Build;
+import android.os.Parcel;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * @Author: mChenys
+ * @Date: 2021/5/19
+ * @Description: 插件清单解析结果的磁盘缓存, 以系统版本、apk的大小和修改时间作为key,
+ * 冷启动时读取缓存就不需要再用PackageParser解析每个插件
+ * <p>
+ * 和DexOptimizer的记录一样不校验apk内容, 插件安装和更新都会重写apk文件, 大小和修改时间足以判断是否变化
+ */
+public class ManifestCache {
+    private static final String TAG = Constants.TAG_PREFIX + "ManifestCache";
+
+    private static final int MAGIC = 0x504c4d46; // PLMF
+    /**
+     * 缓存格式变化时需要加1
+     */
+    private static final int VERSION = 2;
+    private static final String SUFFIX = ".manifest";
+
+    /**
+     * 读取缓存
+     *
+     * @param context
+     * @param apk
+     * @return 缓存不存在或者已失效返回null
+     */
+    public static PluginManifest load(Context context, File apk) {
+        File cacheFile = getCacheFile(context, apk);
+        if (!cacheFile.exists()) {
+            return null;
+        }
+        long startTime = System.currentTimeMillis();
+        DataInputStream input = null;
+        Parcel parcel = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+            if (input.readInt() != MAGIC || input.readInt() != VERSION
+                    // Parcel的格式和系统版本相关,系统升级后缓存失效
+                    || !Build.FINGERPRINT.equals(input.readUTF())
+                    || input.readLong() != apk.length()
+                    || input.readLong() != apk.lastModified()) {
+                Log.d(TAG, "cache expired: " + apk.getName());
+                return null;
+            }
+            byte[] data = new byte[input.readInt()];
+            input.readFully(data);
+            parcel = Parcel.obtain();
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+            PluginManifest manifest = PluginManifest.createFromParcel(parcel);
+            PackageInfo packageInfo = manifest.mPackageInfo;
+            packageInfo.applicationInfo.sourceDir = apk.getAbsolutePath();
+            packageInfo.applicationInfo.publicSourceDir = apk.getAbsolutePath();
+            Log.d(TAG, "load cache " + apk.getName() + " +" + (System.currentTimeMillis() - startTime) + "ms");
+            return manifest;
+        } catch (Exception e) {
+            Log.w(TAG, "load cache failed: " + apk.getName(), e);
+            cacheFile.delete();
+            return null;
+        } finally {
+            if (parcel != null) {
+                parcel.recycle();
+            }
+            closeQuietly(input);
+        }
+    }
+
+    /**
+     * 写入缓存, 先写临时文件再重命名, 避免读到写了一半的缓存.
+     * 临时文件名唯一, 同一个apk同时保存时不会互相覆盖
+     *
+     * @param context
+     * @param apk
+     * @param manifest
+     */
+    public static void save(Context context, File apk, PluginManifest manifest) {
+        File cacheFile = getCacheFile(context, apk);
+        File tmpFile = null;
+        DataOutputStream output = null;
+        Parcel parcel = Parcel.obtain();
+        try {
+            tmpFile = File.createTempFile(cacheFile.getName(), ".tmp", cacheFile.getParentFile());
+            manifest.writeToParcel(parcel);
+            byte[] data = parcel.marshall();
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeUTF(Build.FINGERPRINT);
+            output.writeLong(apk.length());
+            output.writeLong(apk.lastModified());
+            output.writeInt(data.length);
+            output.write(data);
+            output.close();
+            output = null;
+            if (!tmpFile.renameTo(cacheFile)) {
+                tmpFile.delete();
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "save cache failed: " + apk.getName(), e);
+        } finally {
+            parcel.recycle();
+            closeQuietly(output);
+            if (tmpFile != null && tmpFile.exists()) {
+                tmpFile.delete();
+            }
+        }
+    }
+
+    /**
+     * 删除缓存
+     *
+     * @param context
+     * @param apk
+     */
+    public static void remove(Context context, File apk) {
+        getCacheFile(context, apk).delete();
+    }
+
+    private static File getCacheFile(Context context, File apk) {
+        File dir = context.getDir(Constants.MANIFEST_DIR, Context.MODE_PRIVATE);
+        return new File(dir, apk.getName() + SUFFIX);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -1,13 +1,23 @@
 package com.mchenys.pluginloader.core;
 
 import android.content.Context;
+import android.content.pm.ActivityInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ServiceInfo;
 import android.os.Build;
 import android.util.DisplayMetrics;
+import android.util.Log;
 
 import com.mchenys.pluginloader.utils.ReflectUtils;
 
 import java.io.File;
 import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
 
 /**
  * @Author: mChenys
@@ -15,6 +25,7 @@ import java.lang.reflect.Constructor;
  * @Description: 解析apk管理类, 需要处理兼容性
  */
 public class PackageParserCompat {
+    private static final String TAG = Constants.TAG_PREFIX + "PackageParserCompat";
 
     public static final int PARSE_MUST_BE_APK = 1 << 0;
     private static Object sPackageParser; // PackageParser instance
@@ -54,6 +65,100 @@ public class PackageParserCompat {
         }
     }
 
+    /**
+     * 生成PackageInfo时需要的信息, 和getPackageArchiveInfo解析插件时一致
+     */
+    private static final int PACKAGE_INFO_FLAGS = PackageManager.GET_ACTIVITIES | PackageManager.GET_SERVICES
+            | PackageManager.GET_RECEIVERS | PackageManager.GET_PROVIDERS
+            | PackageManager.GET_PERMISSIONS | PackageManager.GET_META_DATA;
+
+    /**
+     * 根据已解析的PackageParser.Package生成PackageInfo, 避免再用getPackageArchiveInfo解析一次apk
+     * <p>
+     * 优先调用系统的PackageParser.generatePackageInfo, 和getPackageArchiveInfo得到的结果一致, 失败时再手动生成
+     *
+     * @param pkg PackageParser.Package
+     * @param apk
+     * @return
+     * @throws Exception
+     */
+    public static PackageInfo generatePackageInfo(Object pkg, File apk) throws Exception {
+        PackageInfo packageInfo;
+        try {
+            packageInfo = generatePackageInfoBySystem(pkg);
+        } catch (Exception e) {
+            Log.w(TAG, "generatePackageInfo by PackageParser failed, fallback", e);
+            packageInfo = generatePackageInfoManually(pkg);
+        }
+        // 和getPackageArchiveInfo保持一致, 否则无法加载图标和名称
+        packageInfo.applicationInfo.sourceDir = apk.getAbsolutePath();
+        packageInfo.applicationInfo.publicSourceDir = apk.getAbsolutePath();
+        return packageInfo;
+    }
+
+    /**
+     * 调用PackageParser.generatePackageInfo(Package, int[], int, long, long, Set/ArraySet, PackageUserState)
+     * <p>
+     * 5.x的grantedPermissions参数是ArraySet/HashSet, 系统在这些版本传null, 6.0以后传空Set
+     *
+     * @param pkg PackageParser.Package
+     * @return
+     * @throws Exception
+     */
+    private static PackageInfo generatePackageInfoBySystem(Object pkg) throws Exception {
+        Method generateMethod = null;
+        for (Method method : sPackageParser.getClass().getDeclaredMethods()) {
+            Class<?>[] types = method.getParameterTypes();
+            if ("generatePackageInfo".equals(method.getName()) && types.length == 7
+                    && Modifier.isStatic(method.getModifiers())) {
+                generateMethod = method;
+                break;
+            }
+        }
+        if (generateMethod == null) {
+            throw new NoSuchMethodException("PackageParser.generatePackageInfo");
+        }
+        generateMethod.setAccessible(true);
+        Class<?>[] types = generateMethod.getParameterTypes();
+        Set<String> grantedPermissions = Collections.emptySet();
+        Object userState = Class.forName("android.content.pm.PackageUserState").newInstance();
+        PackageInfo packageInfo = (PackageInfo) generateMethod.invoke(null, pkg, null, PACKAGE_INFO_FLAGS, 0L, 0L,
+                types[5].isInstance(grantedPermissions) ? grantedPermissions : null, userState);
+        if (packageInfo == null) {
+            throw new IllegalStateException("PackageParser.generatePackageInfo return null");
+        }
+        return packageInfo;
+    }
+
+    /**
+     * 手动生成PackageInfo, 只包含activities和services
+     *
+     * @param pkg PackageParser.Package
+     * @return
+     * @throws Exception
+     */
+    private static PackageInfo generatePackageInfoManually(Object pkg) throws Exception {
+        PackageInfo packageInfo = new PackageInfo();
+        packageInfo.packageName = ReflectUtils.getField(sPackageClass, pkg, "packageName");
+        packageInfo.versionCode = (int) ReflectUtils.getField(sPackageClass, pkg, "mVersionCode");
+        packageInfo.versionName = ReflectUtils.getField(sPackageClass, pkg, "mVersionName");
+        packageInfo.applicationInfo = ReflectUtils.getField(sPackageClass, pkg, "applicationInfo");
+
+        List/*ArrayList<PackageParser.Activity>*/ activities = ReflectUtils.getField(sPackageClass, pkg, "activities");
+        packageInfo.activities = new ActivityInfo[activities.size()];
+        Class<?> activityClass = Class.forName("android.content.pm.PackageParser$Activity");
+        for (int i = 0; i < activities.size(); i++) {
+            packageInfo.activities[i] = ReflectUtils.getField(activityClass, activities.get(i), "info");
+        }
+        List/*ArrayList<PackageParser.Service>*/ services = ReflectUtils.getField(sPackageClass, pkg, "services");
+        packageInfo.services = new ServiceInfo[services.size()];
+        Class<?> serviceClass = Class.forName("android.content.pm.PackageParser$Service");
+        for (int i = 0; i < services.size(); i++) {
+            packageInfo.services[i] = ReflectUtils.getField(serviceClass, services.get(i), "info");
+        }
+        return packageInfo;
+    }
+
     private static final class PackageParserPPreview {
         /**
          * @param context
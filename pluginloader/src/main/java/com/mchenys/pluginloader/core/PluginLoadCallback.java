@@ -17,4 +17,22 @@ public interface PluginLoadCallback {
      * @param message
      */
     void onError(String message);
+
+    /**
+     * 添加失败, 可以根据原因分别处理, 默认回调{@link #onError(String)}
+     *
+     * @param e
+     */
+    default void onFailure(PluginLoadException e) {
+        onError(e.getMessage());
+    }
+
+    /**
+     * 某个加载阶段完成, 解析、资源、dex优化、so拷贝是并行执行的, 所以会在不同的子线程回调
+     *
+     * @param stage
+     * @param costMillis 该阶段耗时
+     */
+    default void onStageComplete(LoadStage stage, long costMillis) {
+    }
 }
@@ -0,0 +1,56 @@
+package com.mchenys.pluginloader.core;
+
+/**
+ * @Author: mChenys
+ * @Date: 2021/5/23
+ * @Description: 插件加载失败, 通过{@link #getReason()}区分失败原因
+ */
+public class PluginLoadException extends Exception {
+
+    public enum Reason {
+        /**
+         * 拷贝到插件目录失败
+         */
+        COPY_FAILED,
+        /**
+         * 不是有效的插件包
+         */
+        INVALID_PACKAGE,
+        /**
+         * 某个加载阶段失败, 见{@link #getStage()}
+         */
+        STAGE_FAILED,
+        /**
+         * 加载被取消
+         */
+        CANCELLED
+    }
+
+    private final Reason mReason;
+    private final LoadStage mStage;
+
+    public PluginLoadException(Reason reason, String message) {
+        this(reason, null, message, null);
+    }
+
+    public PluginLoadException(Reason reason, LoadStage stage, Throwable cause) {
+        this(reason, stage, cause != null ? cause.getMessage() : null, cause);
+    }
+
+    private PluginLoadException(Reason reason, LoadStage stage, String message, Throwable cause) {
+        super(stage != null ? stage + ": " + message : message, cause);
+        this.mReason = reason;
+        this.mStage = stage;
+    }
+
+    public Reason getReason() {
+        return mReason;
+    }
+
+    /**
+     * @return 失败的加载阶段, 不是加载阶段失败时为null
+     */
+    public LoadStage getStage() {
+        return mStage;
+    }
+}
@@ -0,0 +1,526 @@
+package com.mchenys.pluginloader.core;
+
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.mchenys.pluginloader.utils.RunUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @Author: mChenys
+ * @Date: 2021/5/23
+ * @Description: 插件加载调度器, 并发数根据cpu核数限制, 按优先级加载, 同一个插件同时只会加载一次
+ * <p>
+ * 加载线程数按cpu核数确定, 拷贝apk和解析清单这类读写整个apk的操作另外通过{@link #acquireIo()}限制并发数,
+ * 多个插件同时加载时不会互相争抢io, 也不需要为此压低加载线程数
+ */
+public class PluginLoadScheduler {
+    private static final String TAG = Constants.TAG_PREFIX + "PluginLoadScheduler";
+
+    public static final int PRIORITY_LOW = -10;
+    public static final int PRIORITY_NORMAL = 0;
+    // 首屏需要的插件
+    public static final int PRIORITY_HIGH = 10;
+
+    private static final int POOL_SIZE = Math.max(2, Runtime.getRuntime().availableProcessors() - 1);
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    // 同时拷贝apk和解析清单的最大数量
+    private static final int IO_LIMIT = 2;
+    private static final Semaphore sIoPermits = new Semaphore(IO_LIMIT, true);
+
+    private static final int STATE_OPEN = 0;
+    private static final int STATE_COMMITTED = 1;
+    private static final int STATE_CANCELLED = 2;
+
+    private final ThreadPoolExecutor mExecutor;
+    /**
+     * 正在排队或加载的任务, key=插件包路径
+     */
+    private final Map<String, LoadTask> mTasks = new HashMap<>();
+    private final AtomicLong mNextSequence = new AtomicLong();
+
+    public PluginLoadScheduler() {
+        mExecutor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, "PluginLoader-" + mCount.incrementAndGet());
+            }
+        });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 提交加载任务, 同一个插件已经在排队或加载时不会重复加载, 返回已有的任务
+     *
+     * @param key              插件包路径
+     * @param priority         优先级, 越大越先加载
+     * @param callback         加载回调, 可以为null
+     * @param callbackExecutor 执行回调的线程, 为null时在加载线程回调
+     * @param work             加载操作, 参数是转发给所有回调的PluginLoadCallback
+     * @param async            false时如果在子线程调用, 直接在当前线程加载, 和原来的行为一致
+     * @return 可以用来等待结果或者取消
+     */
+    public LoadTask schedule(String key, int priority, PluginLoadCallback callback, Executor callbackExecutor, LoadWork work, boolean async) {
+        LoadTask task;
+        synchronized (mTasks) {
+            task = mTasks.get(key);
+            if (task != null && !task.isDone()) {
+                Log.d(TAG, "load already scheduled: " + key);
+                task.addCallback(callback, callbackExecutor);
+                return task;
+            }
+            task = new LoadTask(key, priority, mNextSequence.getAndIncrement(), work);
+            task.addCallback(callback, callbackExecutor);
+            mTasks.put(key, task);
+        }
+        if (async || Looper.myLooper() == Looper.getMainLooper()) {
+            mExecutor.execute(task);
+        } else {
+            task.run();
+        }
+        return task;
+    }
+
+    /**
+     * 提交一批加载任务, 由一个调度线程执行work, 每个插件仍然返回自己的LoadTask.
+     * 已经在排队或加载的插件不会加入这一批, 直接返回已有的任务
+     *
+     * @param keys     插件包路径
+     * @param priority 优先级, 越大越先加载
+     * @param work     批量加载操作, 需要设置每个任务的结果
+     * @return 和keys一一对应的任务
+     */
+    public List<LoadTask> scheduleBatch(List<String> keys, int priority, final BatchWork work) {
+        List<LoadTask> result = new ArrayList<>();
+        final List<LoadTask> batch = new ArrayList<>();
+        synchronized (mTasks) {
+            for (String key : keys) {
+                LoadTask task = mTasks.get(key);
+                if (task == null || task.isDone()) {
+                    task = new LoadTask(key, priority, mNextSequence.getAndIncrement(), (LoadWork) null);
+                    mTasks.put(key, task);
+                    batch.add(task);
+                }
+                result.add(task);
+            }
+        }
+        if (batch.isEmpty()) {
+            return result;
+        }
+        mExecutor.execute(new PriorityTask<Object>(priority, mNextSequence.getAndIncrement(), new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                try {
+                    work.load(batch);
+                } catch (Throwable e) {
+                    for (LoadTask task : batch) {
+                        task.fail(e);
+                    }
+                }
+                for (LoadTask task : batch) {
+                    // 没有设置结果的任务按无效插件包处理
+                    task.fail(new PluginLoadException(PluginLoadException.Reason.INVALID_PACKAGE, "无效的插件包"));
+                }
+                return null;
+            }
+        }));
+        return result;
+    }
+
+    /**
+     * 等待多个插件加载完成
+     *
+     * @param tasks
+     * @param timeout 所有任务共用的超时时间
+     * @param unit
+     * @return 加载成功的插件, 失败的原因见{@link LoadTask#getFailure()}
+     * @throws InterruptedException
+     * @throws TimeoutException     超时时还有任务没完成
+     */
+    public static List<LoadedPlugin> awaitAll(Collection<LoadTask> tasks, long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        List<LoadedPlugin> plugins = new ArrayList<>();
+        for (LoadTask task : tasks) {
+            try {
+                plugins.add(RunUtils.awaitOnUiThread(task, Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+            } catch (ExecutionException | CancellationException ignored) {
+                // 失败原因通过getFailure获取
+            }
+        }
+        return plugins;
+    }
+
+    /**
+     * 开始拷贝apk或者解析清单前调用, 同时进行的io操作超过{@link #IO_LIMIT}时等待, 完成后需要调用{@link #releaseIo()}
+     */
+    public static void acquireIo() {
+        sIoPermits.acquireUninterruptibly();
+    }
+
+    public static void releaseIo() {
+        sIoPermits.release();
+    }
+
+    /**
+     * @return 正在排队或加载的任务数
+     */
+    public int getPendingCount() {
+        synchronized (mTasks) {
+            return mTasks.size();
+        }
+    }
+
+    private void onTaskDone(LoadTask task) {
+        synchronized (mTasks) {
+            if (mTasks.get(task.mKey) == task) {
+                mTasks.remove(task.mKey);
+            }
+        }
+    }
+
+    /**
+     * 加载操作
+     */
+    public interface LoadWork {
+        /**
+         * @param task 当前任务, 通过{@link LoadTask#getStageCallback()}回调加载阶段, 修改宿主前需要调用{@link LoadTask#commit()}
+         * @return 无效的插件包返回null
+         * @throws Exception
+         */
+        LoadedPlugin load(LoadTask task) throws Exception;
+    }
+
+    /**
+     * 执行LoadWork, 任务创建后才能拿到LoadTask
+     */
+    private static final class LoadCallable implements Callable<LoadedPlugin> {
+        private final LoadWork mWork;
+        private LoadTask mTask;
+
+        LoadCallable(LoadWork work) {
+            this.mWork = work;
+        }
+
+        @Override
+        public LoadedPlugin call() throws Exception {
+            // 加载阶段转发给所有回调, 完成和失败在done中统一回调
+            LoadedPlugin plugin = mWork.load(mTask);
+            if (plugin == null) {
+                throw new PluginLoadException(PluginLoadException.Reason.INVALID_PACKAGE, "无效的插件包");
+            }
+            return plugin;
+        }
+    }
+
+    /**
+     * 批量加载操作
+     */
+    public interface BatchWork {
+        /**
+         * @param tasks 同一批的加载任务, 通过{@link LoadTask#complete}和{@link LoadTask#fail}设置每个任务的结果,
+         *              没有设置结果的任务按无效插件包处理
+         * @throws Exception 抛出异常时所有还没设置结果的任务都失败
+         */
+        void load(List<LoadTask> tasks) throws Exception;
+    }
+
+    /**
+     * 线程池中的任务, 优先级高的先执行, 相同优先级按提交顺序执行
+     */
+    private static class PriorityTask<V> extends FutureTask<V> implements Comparable<PriorityTask<?>> {
+        final int mPriority;
+        final long mSequence;
+
+        PriorityTask(int priority, long sequence, Callable<V> callable) {
+            super(callable);
+            this.mPriority = priority;
+            this.mSequence = sequence;
+        }
+
+        @Override
+        public int compareTo(PriorityTask<?> other) {
+            if (mPriority != other.mPriority) {
+                return mPriority > other.mPriority ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * 加载任务, 优先级高的先执行, 相同优先级按提交顺序执行
+     * <p>
+     * get()抛出的ExecutionException中的cause是{@link PluginLoadException}
+     */
+    public class LoadTask extends PriorityTask<LoadedPlugin> {
+        private final String mKey;
+        private final List<CallbackEntry> mCallbacks;
+        private final Set<LoadStage> mCompletedStages;
+        private final PluginLoadCallback mStageCallback;
+        // 0: 可以取消, 1: 已经开始修改宿主, 不能再取消, 2: 已取消
+        private final AtomicInteger mCommitState = new AtomicInteger(STATE_OPEN);
+
+        /**
+         * @param work 为null时由{@link BatchWork}设置结果, 任务本身不会被执行
+         */
+        private LoadTask(String key, int priority, long sequence, LoadWork work) {
+            this(key, priority, sequence, new LoadCallable(work));
+        }
+
+        private LoadTask(String key, int priority, long sequence, LoadCallable callable) {
+            super(priority, sequence, callable);
+            this.mKey = key;
+            this.mCallbacks = new CopyOnWriteArrayList<>();
+            this.mCompletedStages = Collections.synchronizedSet(EnumSet.noneOf(LoadStage.class));
+            this.mStageCallback = newStageCallback(mCallbacks, mCompletedStages);
+            callable.mTask = this;
+        }
+
+        /**
+         * 加载即将修改宿主(合并dex和资源、保存插件)时调用, 之后任务不能再取消
+         *
+         * @return 已经取消时返回false, 调用者需要放弃加载, 不能再修改宿主
+         */
+        public boolean commit() {
+            return mCommitState.compareAndSet(STATE_OPEN, STATE_COMMITTED)
+                    || mCommitState.get() == STATE_COMMITTED;
+        }
+
+        /**
+         * 插件已经开始修改宿主后不能取消, 返回false
+         */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (!mCommitState.compareAndSet(STATE_OPEN, STATE_CANCELLED) && mCommitState.get() != STATE_CANCELLED) {
+                return false;
+            }
+            return super.cancel(mayInterruptIfRunning);
+        }
+
+        /**
+         * @return 把加载阶段转发给所有回调的PluginLoadCallback
+         */
+        public PluginLoadCallback getStageCallback() {
+            return mStageCallback;
+        }
+
+        /**
+         * 批量加载时设置加载结果, 已经有结果或者已取消时忽略
+         *
+         * @param plugin
+         */
+        void complete(LoadedPlugin plugin) {
+            if (plugin == null) {
+                fail(new PluginLoadException(PluginLoadException.Reason.INVALID_PACKAGE, "无效的插件包"));
+            } else {
+                set(plugin);
+            }
+        }
+
+        /**
+         * 批量加载时设置失败原因, 已经有结果或者已取消时忽略
+         *
+         * @param cause
+         */
+        void fail(Throwable cause) {
+            setException(cause);
+        }
+
+        public String getKey() {
+            return mKey;
+        }
+
+        public int getPriority() {
+            return mPriority;
+        }
+
+        /**
+         * 添加回调, 任务已经完成时直接回调结果
+         *
+         * @param callback
+         * @param executor 执行回调的线程, 为null时在加载线程回调
+         */
+        public void addCallback(PluginLoadCallback callback, Executor executor) {
+            if (callback == null) {
+                return;
+            }
+            CallbackEntry entry = new CallbackEntry(callback, executor);
+            synchronized (mCallbacks) {
+                if (!isDone()) {
+                    mCallbacks.add(entry);
+                    return;
+                }
+            }
+            deliverResult(entry);
+        }
+
+        /**
+         * @return 已经完成的加载阶段
+         */
+        public Set<LoadStage> getCompletedStages() {
+            synchronized (mCompletedStages) {
+                return mCompletedStages.isEmpty() ? EnumSet.noneOf(LoadStage.class) : EnumSet.copyOf(mCompletedStages);
+            }
+        }
+
+        /**
+         * 等待加载完成, 在主线程等待时会执行加载线程提交到主线程的Application创建, 不会互相等到超时
+         *
+         * @return
+         * @throws PluginLoadException  加载失败或者被取消
+         * @throws InterruptedException
+         */
+        public LoadedPlugin await() throws PluginLoadException, InterruptedException {
+            try {
+                return RunUtils.awaitOnUiThread(this);
+            } catch (CancellationException e) {
+                throw new PluginLoadException(PluginLoadException.Reason.CANCELLED, "加载已取消");
+            } catch (ExecutionException e) {
+                throw toLoadException(e.getCause());
+            }
+        }
+
+        /**
+         * @return 加载失败的原因, 还没完成或者成功时返回null
+         */
+        public PluginLoadException getFailure() {
+            if (!isDone()) {
+                return null;
+            }
+            try {
+                await();
+                return null;
+            } catch (PluginLoadException e) {
+                return e;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+
+        @Override
+        protected void done() {
+            onTaskDone(this);
+            List<CallbackEntry> callbacks;
+            synchronized (mCallbacks) {
+                callbacks = new ArrayList<>(mCallbacks);
+            }
+            for (CallbackEntry entry : callbacks) {
+                deliverResult(entry);
+            }
+        }
+
+        private void deliverResult(final CallbackEntry entry) {
+            final LoadedPlugin plugin;
+            final PluginLoadException failure;
+            LoadedPlugin result = null;
+            PluginLoadException error = null;
+            try {
+                result = await();
+            } catch (PluginLoadException e) {
+                error = e;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                error = new PluginLoadException(PluginLoadException.Reason.CANCELLED, "加载已取消");
+            }
+            plugin = result;
+            failure = error;
+            entry.dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    if (plugin != null) {
+                        entry.callback.onComplete(plugin);
+                    } else {
+                        entry.callback.onFailure(failure);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * @param callbacks
+     * @param completedStages
+     * @return 记录已完成的阶段并转发给所有回调的PluginLoadCallback
+     */
+    private static PluginLoadCallback newStageCallback(final List<CallbackEntry> callbacks, final Set<LoadStage> completedStages) {
+        return new PluginLoadCallback() {
+            @Override
+            public void onComplete(LoadedPlugin plugin) {
+            }
+
+            @Override
+            public void onError(String message) {
+            }
+
+            @Override
+            public void onStageComplete(final LoadStage stage, final long costMillis) {
+                completedStages.add(stage);
+                for (final CallbackEntry entry : callbacks) {
+                    entry.dispatch(new Runnable() {
+                        @Override
+                        public void run() {
+                            entry.callback.onStageComplete(stage, costMillis);
+                        }
+                    });
+                }
+            }
+        };
+    }
+
+    private static PluginLoadException toLoadException(Throwable cause) {
+        if (cause instanceof PluginLoadException) {
+            return (PluginLoadException) cause;
+        }
+        return new PluginLoadException(PluginLoadException.Reason.STAGE_FAILED, null, cause);
+    }
+
+    private static final class CallbackEntry {
+        final PluginLoadCallback callback;
+        final Executor executor;
+
+        CallbackEntry(PluginLoadCallback callback, Executor executor) {
+            this.callback = callback;
+            this.executor = executor;
+        }
+
+        void dispatch(Runnable runnable) {
+            if (executor != null) {
+                executor.execute(runnable);
+            } else {
+                runnable.run();
+            }
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.mchenys.pluginloader.core;
 
+import android.app.Activity;
 import android.app.Application;
 import android.app.Instrumentation;
 import android.content.ComponentName;
@@ -7,13 +8,13 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.pm.ResolveInfo;
 import android.os.Bundle;
-import android.os.Looper;
 import android.text.TextUtils;
 import android.util.Log;
 
 import androidx.annotation.WorkerThread;
 import androidx.fragment.app.Fragment;
 
+import com.mchenys.pluginloader.core.hook.AMSInvocationHandler;
 import com.mchenys.pluginloader.core.hook.Android10_11Hook;
 import com.mchenys.pluginloader.core.hook.Android5_7Hook;
 import com.mchenys.pluginloader.core.hook.Android8_9Hook;
@@ -21,15 +22,20 @@ import com.mchenys.pluginloader.core.hook.IAndroidHook;
 import com.mchenys.pluginloader.core.hook.PLInstrumentation;
 import com.mchenys.pluginloader.utils.PluginUtil;
 import com.mchenys.pluginloader.utils.ReflectUtils;
+import com.mchenys.pluginloader.utils.RunUtils;
 import com.mchenys.pluginloader.utils.VersionUtils;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * @Author: mChenys
@@ -42,11 +48,23 @@ public class PluginManager {
     private static final PluginManager sInstance = new PluginManager();
     // 缓存已加载的插件包
     private final Map<String, LoadedPlugin> mLoadedPluginMap = new ConcurrentHashMap<>();
+    // 所有插件Activity的索引
+    private final ComponentResolver mComponentResolver = new ComponentResolver();
+    // 类名到所属插件的索引, 初始化时创建
+    private ClassOwnerIndex mClassOwnerIndex;
     private Context mContext;
     private Application mApplication;
     private ComponentsHandler mComponentsHandler;
     private PLInstrumentation mInstrumentation;
-    private ExecutorService mThreadPool = Executors.newCachedThreadPool();
+    private IAndroidHook mAndroidHook;
+    // 插件加载调度
+    private final PluginLoadScheduler mLoadScheduler = new PluginLoadScheduler();
+    // 还没加载的已安装插件
+    private final LazyPluginRegistry mLazyRegistry = new LazyPluginRegistry();
+    // 读取已安装插件清单的任务
+    private volatile FutureTask<Object> mRegistryTask;
+    // 启动时已存在插件的加载优先级, key=插件文件名
+    private final Map<String, Integer> mInnerPluginPriorities = new ConcurrentHashMap<>();
     // 插件apk目录
     private File mPluginApkDir;
 
@@ -80,7 +98,9 @@ public class PluginManager {
                 this.mContext = mApplication.getBaseContext();
             }
         }
+        this.mClassOwnerIndex = new ClassOwnerIndex(mContext.getClassLoader());
         this.mComponentsHandler = createComponentsHandler();
+        this.mComponentsHandler.registerStubLifecycleCallbacks(mApplication);
         this.mPluginApkDir = mContext.getDir(Constants.PLUGIN_DIR, Context.MODE_PRIVATE);
         hookCurrentProcess();
         loadInnerPlugin();
@@ -127,6 +147,7 @@ public class PluginManager {
             Log.e(TAG, "==================hookAms success!!! ");
             androidHook.hookActivityThread(mApplication);
             Log.e(TAG, "==================hookActivityThread success!!! ");
+            mAndroidHook = androidHook;
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -138,17 +159,230 @@ public class PluginManager {
 
     /**
      * 加载已存在的插件,保证每次启动的时候可用
+     * <p>
+     * 各插件在线程池中并行准备, 全部准备好后一起合并, 宿主的dexElements只替换一次, 见{@link #loadInnerPluginBatch}
      */
     @WorkerThread
     private void loadInnerPlugin() {
+        final List<File> lazyFiles = new ArrayList<>();
+        final List<File> eagerFiles = new ArrayList<>();
+        int eagerPriority = PluginLoadScheduler.PRIORITY_LOW;
         if (null != mPluginApkDir.listFiles())
             for (File file : mPluginApkDir.listFiles()) {
                 try {
-                    loadPlugin(file, false, null);
+                    Integer priority = mInnerPluginPriorities.get(file.getName());
+                    if (priority == null) {
+                        priority = PluginLoadScheduler.PRIORITY_NORMAL;
+                    }
+                    // 首屏需要的插件不延迟加载
+                    if (Constants.LAZY_LOAD_PLUGIN && priority < PluginLoadScheduler.PRIORITY_HIGH) {
+                        lazyFiles.add(file);
+                    } else {
+                        eagerFiles.add(file);
+                        eagerPriority = Math.max(eagerPriority, priority);
+                    }
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
             }
+        if (eagerFiles.size() == 1) {
+            loadPlugin(eagerFiles.get(0), false, null, null, eagerPriority, false);
+        } else if (!eagerFiles.isEmpty()) {
+            loadInnerPluginBatch(eagerFiles, eagerPriority);
+        }
+        if (!lazyFiles.isEmpty()) {
+            registerLazyPlugins(lazyFiles);
+        }
+    }
+
+    /**
+     * 启动时一起加载多个插件: 在线程池中并行解析和准备, 然后一次合并所有插件的dex和资源, 最后逐个保存并创建Application
+     *
+     * @param files    私有目录中的插件
+     * @param priority
+     * @return 和files一一对应的任务
+     */
+    private List<PluginLoadScheduler.LoadTask> loadInnerPluginBatch(final List<File> files, int priority) {
+        List<String> keys = new ArrayList<>();
+        for (File file : files) {
+            keys.add(file.getAbsolutePath());
+        }
+        return mLoadScheduler.scheduleBatch(keys, priority, new PluginLoadScheduler.BatchWork() {
+            @Override
+            public void load(List<PluginLoadScheduler.LoadTask> tasks) throws Exception {
+                List<FutureTask<LoadedPlugin>> prepares = new ArrayList<>();
+                for (final PluginLoadScheduler.LoadTask task : tasks) {
+                    if (task.isCancelled()) {
+                        prepares.add(null);
+                        continue;
+                    }
+                    FutureTask<LoadedPlugin> prepare = new FutureTask<>(new Callable<LoadedPlugin>() {
+                        @Override
+                        public LoadedPlugin call() throws Exception {
+                            File apk = new File(task.getKey());
+                            if (!apk.exists() || apk.length() <= 0) {
+                                return null;
+                            }
+                            return LoadedPlugin.prepare(PluginManager.this, mContext, apk, false, task.getStageCallback());
+                        }
+                    });
+                    prepares.add(prepare);
+                    RunUtils.getThreadPool().execute(prepare);
+                }
+                // 只合并准备成功的插件, 失败的插件不会修改宿主
+                List<PluginLoadScheduler.LoadTask> publishTasks = new ArrayList<>();
+                List<LoadedPlugin> plugins = new ArrayList<>();
+                List<PluginLoadCallback> callbacks = new ArrayList<>();
+                for (int i = 0; i < tasks.size(); i++) {
+                    PluginLoadScheduler.LoadTask task = tasks.get(i);
+                    if (prepares.get(i) == null) {
+                        continue;
+                    }
+                    try {
+                        LoadedPlugin plugin = LoadedPlugin.awaitStage(prepares.get(i));
+                        if (plugin == null || plugin.isAttached()) {
+                            task.complete(plugin);
+                        } else if (!task.commit()) {
+                            // 准备期间被取消, 还没有修改宿主, 直接丢弃
+                            Log.d(TAG, "load cancelled: " + task.getKey());
+                        } else {
+                            publishTasks.add(task);
+                            plugins.add(plugin);
+                            callbacks.add(task.getStageCallback());
+                        }
+                    } catch (Exception e) {
+                        task.fail(e);
+                    }
+                }
+                LoadedPlugin.publish(mContext, plugins, callbacks);
+                for (int i = 0; i < plugins.size(); i++) {
+                    try {
+                        plugins.get(i).attach(callbacks.get(i));
+                        publishTasks.get(i).complete(plugins.get(i));
+                    } catch (Exception e) {
+                        publishTasks.get(i).fail(e);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * 在单独的线程读取插件清单并登记, 不创建LoadedPlugin
+     * <p>
+     * 不放到线程池中, 线程池满时会在调用线程执行, 也不会在等待的线程中执行, 启动Activity时只需要等待读取完成
+     *
+     * @param files
+     */
+    private void registerLazyPlugins(final List<File> files) {
+        FutureTask<Object> task = new FutureTask<>(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                for (File file : files) {
+                    try {
+                        PluginManifest manifest = PluginManifest.obtain(mContext, file);
+                        if (getLoadedPlugin(manifest.mPackageInfo.packageName) == null) {
+                            mLazyRegistry.register(file, manifest);
+                            // 还没加载的插件在后台提前完成dex优化
+                            DexOptimizer.schedule(mContext, file);
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+                return null;
+            }
+        });
+        mRegistryTask = task;
+        new Thread(task, "PluginRegistry").start();
+    }
+
+    /**
+     * 等待插件清单登记完成
+     */
+    private void awaitLazyRegistry() {
+        FutureTask<Object> task = mRegistryTask;
+        if (task == null || task.isDone()) {
+            return;
+        }
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 返回已加载的插件, 插件已安装但还没加载时同步加载
+     *
+     * @param packageName
+     * @return 插件不存在或者加载失败返回null
+     */
+    public LoadedPlugin ensurePluginLoaded(String packageName) {
+        LoadedPlugin plugin = mLoadedPluginMap.get(packageName);
+        if (plugin != null) {
+            return plugin;
+        }
+        awaitLazyRegistry();
+        File apk = mLazyRegistry.getApk(packageName);
+        if (apk != null) {
+            Log.d(TAG, "load plugin on demand: " + packageName);
+            awaitLoad(loadPlugin(apk, false, null, null, PluginLoadScheduler.PRIORITY_HIGH, false));
+        }
+        return mLoadedPluginMap.get(packageName);
+    }
+
+    /**
+     * 加载intent可能用到的还没加载的插件
+     *
+     * @param intent
+     */
+    private void ensurePluginsLoaded(Intent intent) {
+        awaitLazyRegistry();
+        List<PluginLoadScheduler.LoadTask> tasks = new ArrayList<>();
+        for (String packageName : mLazyRegistry.findPackages(intent, mContext.getPackageName())) {
+            File apk = mLazyRegistry.getApk(packageName);
+            if (apk != null) {
+                Log.d(TAG, "load plugin on demand: " + packageName);
+                tasks.add(loadPlugin(apk, false, null, null, PluginLoadScheduler.PRIORITY_HIGH, false));
+            }
+        }
+        for (PluginLoadScheduler.LoadTask task : tasks) {
+            awaitLoad(task);
+        }
+    }
+
+    private void awaitLoad(PluginLoadScheduler.LoadTask task) {
+        try {
+            task.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (PluginLoadException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 设置启动时已存在插件的加载优先级, 例如首屏需要的插件, 需要在{@link #init(Context)}之前调用
+     *
+     * @param fileName 插件文件名
+     * @param priority 见{@link PluginLoadScheduler#PRIORITY_HIGH}等
+     */
+    public void setInnerPluginPriority(String fileName, int priority) {
+        mInnerPluginPriorities.put(fileName, priority);
+    }
+
+    /**
+     * 加载外部插件
+     *
+     * @param file
+     * @param callback
+     * @return 可以用来等待或取消加载
+     */
+    public PluginLoadScheduler.LoadTask addPlugin(File file, PluginLoadCallback callback) {
+        return addPlugin(file, callback, PluginLoadScheduler.PRIORITY_NORMAL);
     }
 
     /**
@@ -156,9 +390,55 @@ public class PluginManager {
      *
      * @param file
      * @param callback
+     * @param priority 加载优先级
+     * @return 可以用来等待或取消加载
+     */
+    public PluginLoadScheduler.LoadTask addPlugin(File file, PluginLoadCallback callback, int priority) {
+        return loadPlugin(file, true, callback, null, priority, false);
+    }
+
+    /**
+     * 异步加载外部插件, 立即返回, 不会占用调用线程
+     *
+     * @param file
+     * @param priority         加载优先级
+     * @param callback         加载阶段、完成和失败的回调, 可以为null
+     * @param callbackExecutor 执行回调的线程, 为null时在加载线程回调
+     * @return 可以等待结果、查询已完成的阶段或者取消
+     */
+    public PluginLoadScheduler.LoadTask addPluginAsync(File file, int priority, PluginLoadCallback callback, Executor callbackExecutor) {
+        return loadPlugin(file, true, callback, callbackExecutor, priority, true);
+    }
+
+    /**
+     * 异步加载多个外部插件, 可以配合{@link #awaitPlugins}等待全部完成
+     *
+     * @param files
+     * @param priority
+     * @param callback         每个插件都会回调, 可以为null
+     * @param callbackExecutor
+     * @return
+     */
+    public List<PluginLoadScheduler.LoadTask> addPluginsAsync(List<File> files, int priority, PluginLoadCallback callback, Executor callbackExecutor) {
+        List<PluginLoadScheduler.LoadTask> tasks = new ArrayList<>();
+        for (File file : files) {
+            tasks.add(addPluginAsync(file, priority, callback, callbackExecutor));
+        }
+        return tasks;
+    }
+
+    /**
+     * 等待多个插件加载完成
+     *
+     * @param tasks
+     * @param timeout
+     * @param unit
+     * @return 加载成功的插件
+     * @throws InterruptedException
+     * @throws TimeoutException
      */
-    public void addPlugin(File file, PluginLoadCallback callback) {
-        loadPlugin(file, true, callback);
+    public List<LoadedPlugin> awaitPlugins(List<PluginLoadScheduler.LoadTask> tasks, long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        return PluginLoadScheduler.awaitAll(tasks, timeout, unit);
     }
 
     /**
@@ -171,7 +451,12 @@ public class PluginManager {
         try {
             // 先copy到私有目录
             File dest = new File(mPluginApkDir, file.getName());
-            PluginUtil.copy(file, dest, true);
+            PluginLoadScheduler.acquireIo();
+            try {
+                PluginUtil.copy(file, dest, true);
+            } finally {
+                PluginLoadScheduler.releaseIo();
+            }
             if (dest.exists() && dest.length() > 0) {
                 return LoadedPlugin.create(PluginManager.this, mContext, dest, true);
             }
@@ -182,49 +467,41 @@ public class PluginManager {
     }
 
     /**
-     * 加载插件
+     * 加载插件, 同一个插件包同时只会加载一次
      *
      * @param file      插件包
      * @param forceLoad 是否强制加载
      * @param callback  加载回调
+     * @param callbackExecutor 执行回调的线程
+     * @param priority  加载优先级
+     * @param async     是否一定在调度器的线程加载
+     * @return
      */
-    @WorkerThread
-    private void loadPlugin(File file, boolean forceLoad, PluginLoadCallback callback) {
-        workOnThread(new Runnable() {
+    private PluginLoadScheduler.LoadTask loadPlugin(final File file, final boolean forceLoad, PluginLoadCallback callback,
+                                                    Executor callbackExecutor, int priority, boolean async) {
+        final File destFile = new File(mPluginApkDir, file.getName());
+        return mLoadScheduler.schedule(destFile.getAbsolutePath(), priority, callback, callbackExecutor, new PluginLoadScheduler.LoadWork() {
             @Override
-            public void run() {
-                try {
-                    File destFile = file;
-                    if (!file.getParentFile().getAbsolutePath().equals(mPluginApkDir.getAbsolutePath())) {
-                        // 先copy到私有目录
-                        destFile = new File(mPluginApkDir, file.getName());
+            public LoadedPlugin load(PluginLoadScheduler.LoadTask task) throws Exception {
+                if (!file.getParentFile().getAbsolutePath().equals(mPluginApkDir.getAbsolutePath())) {
+                    // 先copy到私有目录
+                    PluginLoadScheduler.acquireIo();
+                    try {
                         PluginUtil.copy(file, destFile, true);
-
+                    } catch (Exception e) {
+                        throw new PluginLoadException(PluginLoadException.Reason.COPY_FAILED, null, e);
+                    } finally {
+                        PluginLoadScheduler.releaseIo();
                     }
-                    if (null != destFile && destFile.exists() && destFile.length() > 0) {
-                        LoadedPlugin loadedPlugin = LoadedPlugin.create(PluginManager.this, mContext, destFile, forceLoad);
-                        if (null != callback) {
-                            callback.onComplete(loadedPlugin);
-                        }
-                    } else {
-                        if (null != callback) callback.onError("无效的插件包");
-                    }
-                } catch (Exception e) {
-                    if (null != callback) callback.onError(e.getMessage());
+                    // 解析清单的同时在后台开始dex优化
+                    DexOptimizer.schedule(mContext, destFile);
                 }
+                if (destFile.exists() && destFile.length() > 0) {
+                    return LoadedPlugin.create(PluginManager.this, mContext, destFile, forceLoad, task.getStageCallback(), task);
+                }
+                return null;
             }
-        });
-    }
-
-    /**
-     * 在子线程中执行
-     *
-     * @param runnable
-     */
-    private void workOnThread(Runnable runnable) {
-        if (Looper.myLooper() == Looper.getMainLooper()) {
-            mThreadPool.submit(runnable);
-        } else runnable.run();
+        }, async);
     }
 
     private ComponentsHandler createComponentsHandler() {
@@ -251,6 +528,26 @@ public class PluginManager {
         return list;
     }
 
+    /**
+     * 保存加载完成的插件, 并更新组件索引
+     *
+     * @param plugin
+     */
+    void putLoadedPlugin(LoadedPlugin plugin) {
+        mLoadedPluginMap.put(plugin.getPackageName(), plugin);
+        mLazyRegistry.remove(plugin.getPackageName());
+        mComponentResolver.addPlugin(plugin);
+        mClassOwnerIndex.addPlugin(plugin);
+    }
+
+    public ComponentResolver getComponentResolver() {
+        return this.mComponentResolver;
+    }
+
+    public ClassOwnerIndex getClassOwnerIndex() {
+        return this.mClassOwnerIndex;
+    }
+
     public LoadedPlugin getLoadedPlugin(Intent intent) {
         return getLoadedPlugin(PluginUtil.getComponent(intent));
     }
@@ -277,20 +574,54 @@ public class PluginManager {
         return this.mComponentsHandler;
     }
 
+    /**
+     * 返回插件还存活的Activity, 用于卸载插件前关闭页面或者排查内存泄漏
+     *
+     * @param packageName
+     * @return
+     */
+    public List<Activity> getPluginActivities(String packageName) {
+        if (mInstrumentation == null) {
+            return new ArrayList<>();
+        }
+        return mInstrumentation.getActivities(packageName);
+    }
+
+    /**
+     * 返回插件的dex优化耗时
+     *
+     * @param packageName
+     * @return ms, 没有优化过返回-1
+     */
+    public long getDexOptCost(String packageName) {
+        LoadedPlugin plugin = mLoadedPluginMap.get(packageName);
+        if (plugin != null) {
+            return plugin.getDexOptCost();
+        }
+        File apk = mLazyRegistry.getApk(packageName);
+        return apk != null ? DexOptimizer.getOptimizeCost(mContext, apk) : -1;
+    }
+
+    /**
+     * 返回AMS代理方法的调用统计
+     *
+     * @return
+     */
+    public List<AMSInvocationHandler.MethodStats> getAMSMethodStats() {
+        if (mAndroidHook == null || mAndroidHook.getAMSInvocationHandler() == null) {
+            return new ArrayList<>();
+        }
+        return mAndroidHook.getAMSInvocationHandler().getMethodStats();
+    }
+
     // 根据intent去获取对应的ResolveInfo
     public ResolveInfo resolveActivity(Intent intent) {
         return this.resolveActivity(intent, 0);
     }
 
     public ResolveInfo resolveActivity(Intent intent, int flags) {
-        for (LoadedPlugin plugin : this.mLoadedPluginMap.values()) {
-            // 获取对应插件的ResolveInfo
-            ResolveInfo resolveInfo = plugin.resolveActivity(intent, flags);
-            if (null != resolveInfo) {
-                return resolveInfo;
-            }
-        }
-        return null;
+        ensurePluginsLoaded(intent);
+        return mComponentResolver.resolveActivity(intent, flags, mContext.getPackageName());
     }
 
     /**
@@ -304,13 +635,27 @@ public class PluginManager {
             return false;
         }
         LoadedPlugin loadedPlugin = mLoadedPluginMap.get(packageName);
-        if (loadedPlugin == null) {
-            return true;
+        File pluginFile;
+        if (loadedPlugin != null) {
+            pluginFile = new File(loadedPlugin.mLocation);
+        } else {
+            awaitLazyRegistry();
+            pluginFile = mLazyRegistry.getApk(packageName);
+            if (pluginFile == null) {
+                return true;
+            }
         }
-        File pluginFile = new File(loadedPlugin.mLocation);
         boolean success = pluginFile.delete();
         if (success) {
+            ManifestCache.remove(mContext, pluginFile);
+            DexOptimizer.remove(mContext, pluginFile);
             mLoadedPluginMap.remove(packageName);
+            mLazyRegistry.remove(packageName);
+            mComponentResolver.removePlugin(packageName);
+            mClassOwnerIndex.removePlugin(packageName);
+            if (mInstrumentation != null && !mInstrumentation.getActivities(packageName).isEmpty()) {
+                Log.w(TAG, "uninstall plugin " + packageName + " with live activities");
+            }
             return true;
         }
         return false;
@@ -324,14 +669,16 @@ public class PluginManager {
      * @return
      */
     public Fragment getPluginFragment(String packageName, String className) {
-        LoadedPlugin loadedPlugin = mLoadedPluginMap.get(packageName);
+        LoadedPlugin loadedPlugin = ensurePluginLoaded(packageName);
         if (null != loadedPlugin) {
+            loadedPlugin.ensureApplication();
             try {
-                if (Constants.COMBINE_CLASSLOADER) {
-                    return (Fragment) Class.forName(className).newInstance();
-                } else {
-                    return (Fragment) Class.forName(className, true, loadedPlugin.mClassLoader).newInstance();
+                // 通过索引直接从所在的dex加载, 索引中没有时由插件ClassLoader按原来的顺序查找
+                Class<?> fragmentClass = mClassOwnerIndex.loadClass(packageName, className);
+                if (fragmentClass == null) {
+                    fragmentClass = Class.forName(className, true, loadedPlugin.mClassLoader);
                 }
+                return (Fragment) fragmentClass.newInstance();
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -0,0 +1,118 @@
+package com.mchenys.pluginloader.core;
+
+import android.content.Context;
+import android.content.IntentFilter;
+import android.content.pm.ActivityInfo;
+import android.content.pm.PackageInfo;
+import android.os.Parcel;
+
+import com.mchenys.pluginloader.utils.ReflectUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @Author: mChenys
+ * @Date: 2021/5/19
+ * @Description: 插件清单文件中加载需要的信息, 可以来自PackageParser的解析结果, 也可以来自磁盘缓存
+ */
+public class PluginManifest {
+
+    /**
+     * PackageParser.Package, 从缓存读取时为null
+     */
+    public final Object mPackage;
+    public final PackageInfo mPackageInfo;
+    /**
+     * 每个Activity的intent-filter, key=Activity类名, 按清单文件中的顺序
+     */
+    private final Map<String, List<IntentFilter>> mActivityIntentFilters;
+
+    private PluginManifest(Object pkg, PackageInfo packageInfo, Map<String, List<IntentFilter>> activityIntentFilters) {
+        this.mPackage = pkg;
+        this.mPackageInfo = packageInfo;
+        this.mActivityIntentFilters = activityIntentFilters;
+    }
+
+    /**
+     * 优先读取缓存, 缓存失效时解析apk并重新写入缓存
+     *
+     * @param context
+     * @param apk
+     * @return
+     * @throws Exception
+     */
+    public static PluginManifest obtain(Context context, File apk) throws Exception {
+        PluginManifest manifest = ManifestCache.load(context, apk);
+        if (manifest != null) {
+            return manifest;
+        }
+        manifest = parse(context, apk);
+        ManifestCache.save(context, apk, manifest);
+        return manifest;
+    }
+
+    /**
+     * 用PackageParser解析apk
+     *
+     * @param context
+     * @param apk
+     * @return
+     * @throws Exception
+     */
+    public static PluginManifest parse(Context context, File apk) throws Exception {
+        Object pkg = PackageParserCompat.parsePackage(context, apk, PackageParserCompat.PARSE_MUST_BE_APK);
+        PackageInfo packageInfo = PackageParserCompat.generatePackageInfo(pkg, apk);
+
+        Map<String, List<IntentFilter>> filters = new LinkedHashMap<>();
+        Class<?> componentClass = Class.forName("android.content.pm.PackageParser$Component");
+        Class<?> activityClass = Class.forName("android.content.pm.PackageParser$Activity");
+        List/*ArrayList<PackageParser.Activity>*/ activities = ReflectUtils.getField(pkg, "activities");
+        for (Object/*PackageParser.Activity*/ activity : activities) {
+            ActivityInfo info = ReflectUtils.getField(activityClass, activity, "info");
+            List/*ArrayList<ActivityIntentInfo>*/ intents = ReflectUtils.getField(componentClass, activity, "intents");
+            List<IntentFilter> list = new ArrayList<>();
+            if (null != intents) {
+                for (Object/*PackageParser.ActivityIntentInfo*/ intentInfo : intents) {
+                    // ActivityIntentInfo持有Activity的引用,只保留IntentFilter部分
+                    list.add(new IntentFilter((IntentFilter) intentInfo));
+                }
+            }
+            filters.put(info.name, list);
+        }
+        return new PluginManifest(pkg, packageInfo, filters);
+    }
+
+    /**
+     * @return key=Activity类名, value=该Activity的intent-filter
+     */
+    public Map<String, List<IntentFilter>> getActivityIntentFilters() {
+        return Collections.unmodifiableMap(mActivityIntentFilters);
+    }
+
+    void writeToParcel(Parcel dest) {
+        mPackageInfo.writeToParcel(dest, 0);
+        dest.writeInt(mActivityIntentFilters.size());
+        for (Map.Entry<String, List<IntentFilter>> entry : mActivityIntentFilters.entrySet()) {
+            dest.writeString(entry.getKey());
+            dest.writeTypedList(entry.getValue());
+        }
+    }
+
+    static PluginManifest createFromParcel(Parcel source) {
+        PackageInfo packageInfo = PackageInfo.CREATOR.createFromParcel(source);
+        int size = source.readInt();
+        Map<String, List<IntentFilter>> filters = new LinkedHashMap<>();
+        for (int i = 0; i < size; i++) {
+            String name = source.readString();
+            List<IntentFilter> list = new ArrayList<>();
+            source.readTypedList(list, IntentFilter.CREATOR);
+            filters.put(name, list);
+        }
+        return new PluginManifest(null, packageInfo, filters);
+    }
+}
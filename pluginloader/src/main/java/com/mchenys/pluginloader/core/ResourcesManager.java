@@ -4,13 +4,17 @@ import android.content.Context;
 import android.content.res.AssetManager;
 import android.content.res.Resources;
 import android.os.Build;
+import android.util.Log;
 
 import com.mchenys.pluginloader.utils.ReflectUtils;
 
 import java.io.File;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * @Author: mChenys
@@ -18,7 +22,14 @@ import java.util.List;
  * @Description: 资源管理类
  */
 public class ResourcesManager {
+    private static final String TAG = Constants.TAG_PREFIX + "ResourcesManager";
+
     public static Resources mCombineResource;
+    /**
+     * 已经添加到宿主AssetManager中的插件路径, 同一个路径只添加一次
+     */
+    private static final Set<String> sMergedAssetPaths = new HashSet<>();
+
     /**
      * 创建合并后的Resources
      *
@@ -27,17 +38,39 @@ public class ResourcesManager {
      * @return
      */
     public static Resources createMergeResources(Context hostContext, File apk) {
+        return createMergeResources(hostContext, Collections.singletonList(apk));
+    }
+
+    /**
+     * 批量合并插件资源, 只添加宿主AssetManager中还没有的路径, api21以下也只需要重建一次AssetManager
+     *
+     * @param hostContext
+     * @param apks
+     * @return
+     */
+    public static synchronized Resources createMergeResources(Context hostContext, List<File> apks) {
         Resources hostResources = hostContext.getResources();
         try {
             AssetManager assetManager = hostResources.getAssets();
+            // 需要新增的路径
+            List<String> newPaths = new ArrayList<>();
+            for (File apk : apks) {
+                String path = apk.getAbsolutePath();
+                if (!sMergedAssetPaths.contains(path) && !newPaths.contains(path)) {
+                    newPaths.add(path);
+                }
+            }
+            if (newPaths.isEmpty()) {
+                mCombineResource = hostResources;
+                return hostResources;
+            }
 
             if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
-                //我们需要将应用原来加载的地址取出来
+                //我们需要将应用原来加载的地址取出来,其中已经包含了之前合并的插件
                 List<String> cookieNames = new ArrayList<>();
                 int stringBlockCount = (int) ReflectUtils.invokeMethod(assetManager, "getStringBlockCount");
 
-                Method getCookieNameMethod = AssetManager.class.getDeclaredMethod("getCookieName", Integer.TYPE);
-                getCookieNameMethod.setAccessible(true);
+                Method getCookieNameMethod = ReflectUtils.findMethod(AssetManager.class, "getCookieName", Integer.TYPE);
 
                 for (int i = 0; i < stringBlockCount; i++) {
                     String cookieName =
@@ -52,12 +85,9 @@ public class ResourcesManager {
                 for (String path : cookieNames) {
                     ReflectUtils.invokeMethod(assetManager, "addAssetPath", new Class[]{String.class}, path);
                 }
-                //插入插件的资源地址
-                ReflectUtils.invokeMethod(assetManager, "addAssetPath", new Class[]{String.class}, apk.getAbsolutePath());
-                // 插入已加载的插件
-                List<LoadedPlugin> pluginList = PluginManager.getInstance().getAllLoadedPlugins();
-                for (LoadedPlugin plugin : pluginList) {
-                    ReflectUtils.invokeMethod(assetManager, "addAssetPath", new Class[]{String.class}, plugin.getLocation());
+                //插入新增插件的资源地址
+                for (String path : newPaths) {
+                    addAssetPath(assetManager, path);
                 }
                 // 执行ensureStringBlocks方法
                 ReflectUtils.invokeMethod(assetManager, "ensureStringBlocks");
@@ -65,10 +95,8 @@ public class ResourcesManager {
                 // 如果不进行初始化则会出现找不到资源的崩溃
                 hostResources.updateConfiguration(hostResources.getConfiguration(), hostResources.getDisplayMetrics());
             } else {
-                ReflectUtils.invokeMethod(assetManager, "addAssetPath", new Class[]{String.class}, apk.getAbsolutePath());
-                List<LoadedPlugin> pluginList = PluginManager.getInstance().getAllLoadedPlugins();
-                for (LoadedPlugin plugin : pluginList) {
-                    ReflectUtils.invokeMethod(assetManager, "addAssetPath", new Class[]{String.class}, plugin.getLocation());
+                for (String path : newPaths) {
+                    addAssetPath(assetManager, path);
                 }
             }
         } catch (Exception e) {
@@ -77,4 +105,20 @@ public class ResourcesManager {
         mCombineResource = hostResources;
         return hostResources;
     }
+
+    private static void addAssetPath(AssetManager assetManager, String path) throws Exception {
+        int cookie = (int) ReflectUtils.invokeMethod(assetManager, "addAssetPath", new Class[]{String.class}, path);
+        if (cookie == 0) {
+            Log.w(TAG, "addAssetPath failed: " + path);
+            return;
+        }
+        sMergedAssetPaths.add(path);
+    }
+
+    /**
+     * @return 已合并到宿主AssetManager的插件路径数
+     */
+    public static synchronized int getMergedAssetPathSize() {
+        return sMergedAssetPaths.size();
+    }
 }
@@ -1,18 +1,27 @@
 package com.mchenys.pluginloader.core;
 
+import android.content.ComponentName;
 import android.content.pm.ActivityInfo;
-import android.content.res.Resources;
-import android.content.res.TypedArray;
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * @Author: mChenys
  * @Date: 2021/5/12
  * @Description: 管理占坑的Activity
+ * <p>
+ * singleTop、singleTask、singleInstance的占坑Activity是租用的: 启动插件Activity时分配一个空闲的占坑,
+ * 插件Activity全部销毁后归还. 没有空闲占坑时回收启动失败留下的占坑, 占坑上都有存活的插件Activity时退回标准启动模式
  */
 public class StubActivityInfo {
+    private static final String TAG = Constants.TAG_PREFIX + "StubActivityInfo";
     /**
      * 四种启动模式的占坑数量
      */
@@ -20,6 +29,10 @@ public class StubActivityInfo {
     public static final int MAX_COUNT_SINGLETOP = 8;
     public static final int MAX_COUNT_SINGLETASK = 8;
     public static final int MAX_COUNT_SINGLEINSTANCE = 8;
+    /**
+     * 分配后超过这个时间还没有创建实例的占坑才会被回收, 避免回收正在启动的插件Activity的占坑
+     */
+    private static final long LEASE_PENDING_TIMEOUT = 10 * 1000;
 
     /**
      * 占坑Activity的包名
@@ -31,76 +44,327 @@ public class StubActivityInfo {
     public static final String STUB_ACTIVITY_SINGLEINSTANCE = "%s.D$%d"; // 例如com.mchenys.pluginloader.D$1~8
 
     /**
-     * 四种启动模式Activity类名后缀,1.2.3...
+     * 标准启动模式Activity类名后缀
      */
     public final int usedStandardStubActivity = 1;
-    public int usedSingleTopStubActivity = 0;
-    public int usedSingleTaskStubActivity = 0;
-    public int usedSingleInstanceStubActivity = 0;
+    // 采用透明主题的标准启动模式Activity类名后缀
+    private static final int TRANSLUCENT_STANDARD_STUB_ACTIVITY = 2;
+
+    /**
+     * 所有占坑Activity的类名, 类加载时生成, 分配占坑时不需要再格式化字符串, 下标是类名后缀
+     */
+    private static final String[] STANDARD_STUBS = buildStubNames(STUB_ACTIVITY_STANDARD, TRANSLUCENT_STANDARD_STUB_ACTIVITY);
+    private static final String[] SINGLETOP_STUBS = buildStubNames(STUB_ACTIVITY_SINGLETOP, MAX_COUNT_SINGLETOP);
+    private static final String[] SINGLETASK_STUBS = buildStubNames(STUB_ACTIVITY_SINGLETASK, MAX_COUNT_SINGLETASK);
+    private static final String[] SINGLEINSTANCE_STUBS = buildStubNames(STUB_ACTIVITY_SINGLEINSTANCE, MAX_COUNT_SINGLEINSTANCE);
+    /**
+     * 所有占坑Activity的类名, 占坑Activity只在清单文件中声明, 没有对应的class
+     */
+    private static final Set<String> STUB_ACTIVITIES = new HashSet<>();
+
+    static {
+        for (String[] names : new String[][]{STANDARD_STUBS, SINGLETOP_STUBS, SINGLETASK_STUBS, SINGLEINSTANCE_STUBS}) {
+            for (String name : names) {
+                if (name != null) {
+                    STUB_ACTIVITIES.add(name);
+                }
+            }
+        }
+    }
+
+    private final StubPool mSingleTopPool = new StubPool("singleTop", SINGLETOP_STUBS, MAX_COUNT_SINGLETOP);
+    private final StubPool mSingleTaskPool = new StubPool("singleTask", SINGLETASK_STUBS, MAX_COUNT_SINGLETASK);
+    private final StubPool mSingleInstancePool = new StubPool("singleInstance", SINGLEINSTANCE_STUBS, MAX_COUNT_SINGLEINSTANCE);
+
+    private static String[] buildStubNames(String format, int count) {
+        String[] names = new String[count + 1];
+        for (int i = 1; i <= count; i++) {
+            names[i] = String.format(format, corePackage, i);
+        }
+        return names;
+    }
 
     /**
-     * 缓存,key=targetClassName, value=stubClassName
+     * 是否是占坑Activity的类名
+     *
+     * @param className
+     * @return
      */
-    private HashMap<String, String> mCachedStubActivity = new HashMap<>();
+    public static boolean isStubActivity(String className) {
+        return STUB_ACTIVITIES.contains(className);
+    }
 
     /**
      * 根据启动模式返回合适的占坑Activity的类名
      *
-     * @param className
+     * @param component  插件Activity的包名和类名, 不同插件的同名Activity分别占坑
      * @param launchMode
-     * @param theme
+     * @param plugin     插件Activity所在的插件
+     * @param themeResId 插件Activity的主题
      * @return
      */
-    public String getStubActivity(String className, int launchMode, Resources.Theme theme) {
-        String stubActivity = mCachedStubActivity.get(className);
-        if (stubActivity != null) {
-            return stubActivity;
-        }
-
-        TypedArray array = theme.obtainStyledAttributes(new int[]{
-                android.R.attr.windowIsTranslucent,
-                android.R.attr.windowBackground
-        });
-        boolean windowIsTranslucent = array.getBoolean(0, false);
-        array.recycle();
-        if (Constants.DEBUG) {
-            Log.e(Constants.TAG_PREFIX + "StubActivityInfo", "getStubActivity, is transparent theme ? " + windowIsTranslucent);
-        }
-        // 格式化占坑Activity全路径类名,默认是标准启动模式
-        stubActivity = String.format(STUB_ACTIVITY_STANDARD, corePackage, usedStandardStubActivity);
+    public String getStubActivity(ComponentName component, int launchMode, LoadedPlugin plugin, int themeResId) {
+        StubPool pool = getPool(launchMode);
+        if (pool != null) {
+            String stubActivity = pool.lease(component);
+            if (stubActivity != null) {
+                return stubActivity;
+            }
+            // 占坑都在使用中, 复用会把另一个插件Activity的任务栈带过来, 退回标准启动模式
+            Log.w(TAG, pool.mName + " stub activities are all in use, start " + component + " as standard");
+        }
+        // 默认是标准启动模式, 如果采用透明主题的类名是com.mchenys.pluginloader.A$2
+        return plugin.isTranslucentTheme(themeResId)
+                ? STANDARD_STUBS[TRANSLUCENT_STANDARD_STUB_ACTIVITY] : STANDARD_STUBS[usedStandardStubActivity];
+    }
+
+    /**
+     * 插件Activity创建后调用, 占坑在实例全部销毁前不会被归还
+     *
+     * @param component    插件Activity的包名和类名
+     * @param launchMode
+     * @param stubActivity 插件Activity实际所在的占坑类名, 进程重建后恢复的插件Activity没有分配记录, 按它补上
+     */
+    public void onActivityCreated(ComponentName component, int launchMode, String stubActivity) {
+        StubPool pool = getPool(launchMode);
+        if (pool != null) {
+            pool.onCreated(component, stubActivity);
+        }
+    }
+
+    /**
+     * 插件Activity销毁后调用, 最后一个实例销毁时归还占坑
+     *
+     * @param component              插件Activity的包名和类名
+     * @param launchMode
+     * @param changingConfigurations 是否因为配置变化重建, 重建时不归还占坑
+     */
+    public void onActivityDestroyed(ComponentName component, int launchMode, boolean changingConfigurations) {
+        StubPool pool = getPool(launchMode);
+        if (pool != null) {
+            pool.onDestroyed(component, changingConfigurations);
+        }
+    }
+
+    /**
+     * 返回各启动模式占坑的使用情况, 可以根据数据调整清单中的占坑数量
+     *
+     * @return
+     */
+    public List<StubPoolStats> getStats() {
+        List<StubPoolStats> stats = new ArrayList<>();
+        stats.add(mSingleTopPool.getStats());
+        stats.add(mSingleTaskPool.getStats());
+        stats.add(mSingleInstancePool.getStats());
+        return stats;
+    }
+
+    private StubPool getPool(int launchMode) {
         switch (launchMode) {
-            case ActivityInfo.LAUNCH_MULTIPLE: { // standard模式
-                stubActivity = String.format(STUB_ACTIVITY_STANDARD, corePackage, usedStandardStubActivity);
-                if (windowIsTranslucent) {
-                    // 如果采用透明主题的类名是com.mchenys.pluginloader.A$2
-                    stubActivity = String.format(STUB_ACTIVITY_STANDARD, corePackage, 2);
+            case ActivityInfo.LAUNCH_SINGLE_TOP:
+                return mSingleTopPool;
+            case ActivityInfo.LAUNCH_SINGLE_TASK:
+                return mSingleTaskPool;
+            case ActivityInfo.LAUNCH_SINGLE_INSTANCE:
+                return mSingleInstancePool;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * 同一启动模式的占坑
+     */
+    private static final class StubPool {
+        private final String mName;
+        private final String[] mStubNames;
+        private final int mCapacity;
+        /**
+         * key=插件Activity的包名和类名, 按最近使用排序, 第一个是最久没用过的
+         */
+        private final LinkedHashMap<ComponentName, Lease> mLeases = new LinkedHashMap<>(16, 0.75f, true);
+        private final boolean[] mUsed;
+        private int mPeak;
+        private long mLeaseCount;
+        private long mReclaimCount;
+        private long mOverflowCount;
+
+        StubPool(String name, String[] stubNames, int capacity) {
+            this.mName = name;
+            this.mStubNames = stubNames;
+            this.mCapacity = capacity;
+            this.mUsed = new boolean[capacity + 1];
+        }
+
+        /**
+         * @param component
+         * @return 分配的占坑类名, 占坑上都有存活或正在启动的插件Activity时返回null
+         */
+        synchronized String lease(ComponentName component) {
+            long now = SystemClock.elapsedRealtime();
+            Lease lease = mLeases.get(component);
+            if (lease == null) {
+                int index = findFreeIndex();
+                if (index < 0) {
+                    index = reclaim(now);
+                }
+                if (index < 0) {
+                    mOverflowCount++;
+                    return null;
                 }
-                break;
+                lease = putLease(component, index);
             }
-            case ActivityInfo.LAUNCH_SINGLE_TOP: { //singleTop模式
-                // com.mchenys.pluginloader.B$1~8
-                usedSingleTopStubActivity = usedSingleTopStubActivity % MAX_COUNT_SINGLETOP + 1;
-                stubActivity = String.format(STUB_ACTIVITY_SINGLETOP, corePackage, usedSingleTopStubActivity);
-                break;
+            if (lease.instances <= 0) {
+                // 又一次启动, 重新计算等待创建的时间
+                lease.leasedAt = now;
             }
-            case ActivityInfo.LAUNCH_SINGLE_TASK: { // singleTask模式
-                // com.mchenys.pluginloader.C$1~8
-                usedSingleTaskStubActivity = usedSingleTaskStubActivity % MAX_COUNT_SINGLETASK + 1;
-                stubActivity = String.format(STUB_ACTIVITY_SINGLETASK, corePackage, usedSingleTaskStubActivity);
-                break;
+            // com.mchenys.pluginloader.B$1~8
+            return mStubNames[lease.index];
+        }
+
+        synchronized void onCreated(ComponentName component, String stubActivity) {
+            Lease lease = mLeases.get(component);
+            if (lease == null) {
+                // 进程重建后恢复的插件Activity, 按它所在的占坑补上分配记录
+                int index = indexOf(stubActivity);
+                if (index < 0) {
+                    return;
+                }
+                if (mUsed[index]) {
+                    Log.w(TAG, component + " is restored on " + stubActivity + ", which is leased by another activity");
+                    return;
+                }
+                lease = putLease(component, index);
             }
-            case ActivityInfo.LAUNCH_SINGLE_INSTANCE: { // singleInstance模式
-                // com.mchenys.pluginloader.D$1~8
-                usedSingleInstanceStubActivity = usedSingleInstanceStubActivity % MAX_COUNT_SINGLEINSTANCE + 1;
-                stubActivity = String.format(STUB_ACTIVITY_SINGLEINSTANCE, corePackage, usedSingleInstanceStubActivity);
-                break;
+            if (lease.recreating > 0) {
+                // 配置变化重建的实例, 销毁时没有减少计数
+                lease.recreating--;
+            } else {
+                lease.instances++;
             }
-            default:
-                break;
         }
-        // 保存缓存
-        mCachedStubActivity.put(className, stubActivity);
-        return stubActivity;
+
+        synchronized void onDestroyed(ComponentName component, boolean changingConfigurations) {
+            Lease lease = mLeases.get(component);
+            if (lease == null) {
+                return;
+            }
+            if (changingConfigurations) {
+                lease.recreating++;
+                return;
+            }
+            lease.instances--;
+            if (lease.instances <= 0) {
+                mLeases.remove(component);
+                mUsed[lease.index] = false;
+            }
+        }
+
+        synchronized StubPoolStats getStats() {
+            int instances = 0;
+            for (Lease lease : mLeases.values()) {
+                instances += Math.max(lease.instances, 0);
+            }
+            return new StubPoolStats(mName, mCapacity, mLeases.size(), instances, mPeak, mLeaseCount, mReclaimCount, mOverflowCount);
+        }
+
+        private Lease putLease(ComponentName component, int index) {
+            Lease lease = new Lease(index);
+            mUsed[index] = true;
+            mLeases.put(component, lease);
+            mLeaseCount++;
+            mPeak = Math.max(mPeak, mLeases.size());
+            return lease;
+        }
+
+        private int indexOf(String stubActivity) {
+            for (int i = 1; i <= mCapacity; i++) {
+                if (mStubNames[i].equals(stubActivity)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private int findFreeIndex() {
+            for (int i = 1; i <= mCapacity; i++) {
+                if (!mUsed[i]) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * 回收最久没用过的、分配后超时还没有实例的占坑(启动失败等), 正在启动和有存活实例的占坑不回收
+         *
+         * @param now
+         * @return 回收的占坑序号, 没有可回收的返回-1
+         */
+        private int reclaim(long now) {
+            for (Map.Entry<ComponentName, Lease> entry : mLeases.entrySet()) {
+                Lease lease = entry.getValue();
+                if (lease.instances <= 0 && lease.recreating <= 0 && now - lease.leasedAt >= LEASE_PENDING_TIMEOUT) {
+                    mReclaimCount++;
+                    mLeases.remove(entry.getKey());
+                    return lease.index;
+                }
+            }
+            return -1;
+        }
     }
 
+    private static final class Lease {
+        final int index;
+        // 存活的插件Activity实例数
+        int instances;
+        // 正在因为配置变化重建的实例数
+        int recreating;
+        // 最近一次分配的时间, 没有实例时用来区分正在启动和启动失败
+        long leasedAt;
+
+        Lease(int index) {
+            this.index = index;
+        }
+    }
+
+    /**
+     * 某个启动模式占坑的使用情况
+     */
+    public static final class StubPoolStats {
+        public final String launchMode;
+        // 占坑数量
+        public final int capacity;
+        // 已分配的占坑数量
+        public final int leased;
+        // 存活的插件Activity实例数
+        public final int liveInstances;
+        // 同时分配的最大占坑数量
+        public final int peak;
+        // 累计分配次数
+        public final long leaseCount;
+        // 没有空闲占坑时的回收次数
+        public final long reclaimCount;
+        // 占坑都在使用中退回标准启动模式的次数, 大于0说明占坑数量不够
+        public final long overflowCount;
+
+        StubPoolStats(String launchMode, int capacity, int leased, int liveInstances, int peak,
+                      long leaseCount, long reclaimCount, long overflowCount) {
+            this.launchMode = launchMode;
+            this.capacity = capacity;
+            this.leased = leased;
+            this.liveInstances = liveInstances;
+            this.peak = peak;
+            this.leaseCount = leaseCount;
+            this.reclaimCount = reclaimCount;
+            this.overflowCount = overflowCount;
+        }
+
+        @Override
+        public String toString() {
+            return launchMode + "{capacity=" + capacity + ", leased=" + leased + ", liveInstances=" + liveInstances
+                    + ", peak=" + peak + ", leaseCount=" + leaseCount + ", reclaimCount=" + reclaimCount
+                    + ", overflowCount=" + overflowCount + "}";
+        }
+    }
 }
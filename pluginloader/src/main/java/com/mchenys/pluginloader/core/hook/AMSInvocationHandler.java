@@ -8,11 +8,19 @@ import android.os.RemoteException;
 import android.util.Log;
 
 import com.mchenys.pluginloader.core.Constants;
+import com.mchenys.pluginloader.core.LoadedPlugin;
 import com.mchenys.pluginloader.core.PluginManager;
 import com.mchenys.pluginloader.utils.PluginUtil;
 
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * @Author: mChenys
@@ -22,67 +30,226 @@ import java.lang.reflect.Method;
 public class AMSInvocationHandler implements InvocationHandler {
 
     private static final String TAG = Constants.TAG_PREFIX + "AMSHandler";
+    /**
+     * 拦截方法处理完后继续调用mBase
+     */
+    private static final Object PASS_THROUGH = new Object();
+
     private final PluginManager mPluginManager;
     private final Object mBase; // 真正代理的对象
+    /**
+     * 分发表, 安装代理时根据接口的所有方法一次性建好, key=接口方法
+     */
+    private final ConcurrentHashMap<Method, Entry> mDispatchTable = new ConcurrentHashMap<>();
 
-    public AMSInvocationHandler(Object base, PluginManager pluginManager) {
+    public AMSInvocationHandler(Object base, Class<?> serviceInterface, PluginManager pluginManager) {
         this.mBase = base;
         this.mPluginManager = pluginManager;
+        buildDispatchTable(serviceInterface);
     }
 
-    @Override
-    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-        if ("startActivity".equals(method.getName())) {
-            return startActivity(method, args);
-        } else if ("startService".equals(method.getName())) {
-            try {
+    /**
+     * 拦截的方法,其余方法直接转发给mBase
+     *
+     * @param serviceInterface IActivityManager或IActivityTaskManager
+     */
+    private void buildDispatchTable(Class<?> serviceInterface) {
+        Map<String, Entry> handlers = new HashMap<>();
+        handlers.put("startActivity", new Entry(new MethodHandler() {
+            @Override
+            public Object handle(Method method, Object[] args) throws Throwable {
+                return startActivity(method, args);
+            }
+        }, true));
+        handlers.put("startService", new Entry(new MethodHandler() {
+            @Override
+            public Object handle(Method method, Object[] args) throws Throwable {
                 return startService(method, args);
-            } catch (Throwable e) {
-                Log.e(TAG, "Start service error", e);
             }
-        } else if ("stopService".equals(method.getName())) {
-            try {
+        }, false));
+        handlers.put("stopService", new Entry(new MethodHandler() {
+            @Override
+            public Object handle(Method method, Object[] args) throws Throwable {
                 return stopService(method, args);
-            } catch (Throwable e) {
-                Log.e(TAG, "Stop Service error", e);
             }
-        } else if ("stopServiceToken".equals(method.getName())) {
-            try {
+        }, false));
+        handlers.put("stopServiceToken", new Entry(new MethodHandler() {
+            @Override
+            public Object handle(Method method, Object[] args) throws Throwable {
                 return stopServiceToken(method, args);
-            } catch (Throwable e) {
-                Log.e(TAG, "Stop service token error", e);
             }
-        } else if ("bindService".equals(method.getName())) {
-            try {
+        }, false));
+        handlers.put("bindService", new Entry(new MethodHandler() {
+            @Override
+            public Object handle(Method method, Object[] args) throws Throwable {
                 return bindService(method, args);
-            } catch (Throwable e) {
-                Log.w(TAG, e);
             }
-        } else if ("unbindService".equals(method.getName())) {
-            try {
+        }, false));
+        handlers.put("unbindService", new Entry(new MethodHandler() {
+            @Override
+            public Object handle(Method method, Object[] args) throws Throwable {
                 return unbindService(method, args);
-            } catch (Throwable e) {
-                Log.w(TAG, e);
             }
-        } else if ("getIntentSender".equals(method.getName())) {
-            try {
+        }, false));
+        handlers.put("getIntentSender", new Entry(new MethodHandler() {
+            @Override
+            public Object handle(Method method, Object[] args) throws Throwable {
                 getIntentSender(method, args);
-            } catch (Exception e) {
-                Log.w(TAG, e);
+                return PASS_THROUGH;
             }
-        } else if ("overridePendingTransition".equals(method.getName())) {
-            try {
+        }, false));
+        handlers.put("overridePendingTransition", new Entry(new MethodHandler() {
+            @Override
+            public Object handle(Method method, Object[] args) throws Throwable {
                 overridePendingTransition(method, args);
-            } catch (Exception e) {
-                Log.w(TAG, e);
+                return PASS_THROUGH;
             }
+        }, false));
+
+        for (Method method : serviceInterface.getMethods()) {
+            Entry handler = handlers.get(method.getName());
+            mDispatchTable.put(method, handler != null ? handler.forMethod(method) : new Entry(method));
         }
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        Entry entry = mDispatchTable.get(method);
+        if (entry == null) {
+            // Object的方法(toString、hashCode等)不在接口方法中
+            entry = new Entry(method);
+            Entry old = mDispatchTable.putIfAbsent(method, entry);
+            if (old != null) {
+                entry = old;
+            }
+        }
+        long start = System.nanoTime();
         try {
-            return method.invoke(this.mBase, args);
-        } catch (Throwable th) {
-            Log.w(TAG, th);
+            if (entry.handler != null) {
+                try {
+                    Object result = entry.handler.handle(method, args);
+                    if (result != PASS_THROUGH) {
+                        return result;
+                    }
+                } catch (Throwable e) {
+                    if (entry.rethrow) {
+                        throw e;
+                    }
+                    Log.w(TAG, method.getName() + " error", e);
+                }
+            }
+            try {
+                return method.invoke(this.mBase, args);
+            } catch (Throwable th) {
+                Log.w(TAG, th);
+            }
+            return null;
+        } finally {
+            entry.stats.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * 返回代理方法的调用统计, 只包含被调用过的方法
+     *
+     * @return
+     */
+    public List<MethodStats> getMethodStats() {
+        List<MethodStats> list = new ArrayList<>();
+        for (Entry entry : mDispatchTable.values()) {
+            if (entry.stats.getCallCount() > 0) {
+                list.add(entry.stats);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * 拦截方法的处理
+     */
+    private interface MethodHandler {
+        /**
+         * @return 返回值直接作为binder调用的结果, 返回PASS_THROUGH则继续调用mBase
+         */
+        Object handle(Method method, Object[] args) throws Throwable;
+    }
+
+    private static final class Entry {
+        final MethodHandler handler;
+        // true 异常直接抛给调用者, false 打印后继续调用mBase
+        final boolean rethrow;
+        final MethodStats stats;
+
+        Entry(Method method) {
+            this(null, false, new MethodStats(method.getName()));
+        }
+
+        Entry(MethodHandler handler, boolean rethrow) {
+            this(handler, rethrow, null);
+        }
+
+        private Entry(MethodHandler handler, boolean rethrow, MethodStats stats) {
+            this.handler = handler;
+            this.rethrow = rethrow;
+            this.stats = stats;
+        }
+
+        // 同名重载方法共用handler, 但各自统计
+        Entry forMethod(Method method) {
+            return new Entry(handler, rethrow, new MethodStats(method.getName()));
+        }
+    }
+
+    /**
+     * 单个代理方法的调用次数和耗时分布
+     */
+    public static final class MethodStats {
+        /**
+         * 耗时分桶, 第i个桶表示耗时小于2^i微秒, 最后一个桶包含更长的调用
+         */
+        public static final int BUCKET_COUNT = 16;
+
+        private final String mName;
+        private final AtomicLong mCallCount = new AtomicLong();
+        private final AtomicLong mTotalNanos = new AtomicLong();
+        private final AtomicLongArray mHistogram = new AtomicLongArray(BUCKET_COUNT);
+
+        MethodStats(String name) {
+            this.mName = name;
+        }
+
+        void record(long costNanos) {
+            mCallCount.incrementAndGet();
+            mTotalNanos.addAndGet(costNanos);
+            long micros = costNanos / 1000;
+            int bucket = 64 - Long.numberOfLeadingZeros(micros);
+            mHistogram.incrementAndGet(Math.min(bucket, BUCKET_COUNT - 1));
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public long getCallCount() {
+            return mCallCount.get();
+        }
+
+        public long getTotalNanos() {
+            return mTotalNanos.get();
+        }
+
+        /**
+         * @param bucket 0 ~ BUCKET_COUNT-1
+         * @return 该耗时区间的调用次数
+         */
+        public long getBucketCount(int bucket) {
+            return mHistogram.get(bucket);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[count=%d, total=%dus]", mName, getCallCount(), getTotalNanos() / 1000);
         }
-        return null;
     }
 
     /**
@@ -121,9 +288,25 @@ public class AMSInvocationHandler implements InvocationHandler {
     }
 
     private Object bindService(Method method, Object[] args) {
+        ensurePluginApplication(PluginUtil.getIntent(args));
         return null;
     }
 
+    /**
+     * 启动插件Service前确保插件Application已经创建
+     *
+     * @param intent
+     */
+    private void ensurePluginApplication(Intent intent) {
+        if (intent == null) {
+            return;
+        }
+        LoadedPlugin plugin = mPluginManager.getLoadedPlugin(intent);
+        if (plugin != null) {
+            plugin.ensureApplication();
+        }
+    }
+
     private Object stopServiceToken(Method method, Object[] args) {
         return null;
     }
@@ -133,6 +316,7 @@ public class AMSInvocationHandler implements InvocationHandler {
     }
 
     private Object startService(Method method, Object[] args) {
+        ensurePluginApplication(PluginUtil.getIntent(args));
         return null;
     }
 
@@ -0,0 +1,144 @@
+package com.mchenys.pluginloader.core.hook;
+
+import android.app.Activity;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @Author: mChenys
+ * @Date: 2021/5/24
+ * @Description: 进程内创建的Activity, 按插件包名分组, 宿主的Activity在{@link #HOST}分组中
+ * <p>
+ * Activity被回收后弱引用进入ReferenceQueue, 每次添加时只清理队列中的引用, 不需要遍历全部.
+ * 已经销毁但是还没被回收的Activity不算存活, 遍历时顺便移除
+ */
+public class ActivityRegistry {
+    /**
+     * 宿主Activity的分组
+     */
+    public static final String HOST = "";
+
+    private final ReferenceQueue<Activity> mQueue = new ReferenceQueue<>();
+    /**
+     * key=插件包名, value=该插件的Activity
+     */
+    private final ConcurrentHashMap<String, Set<ActivityRef>> mActivities = new ConcurrentHashMap<>();
+
+    /**
+     * 添加Activity
+     *
+     * @param activity
+     * @param packageName 插件包名, 宿主的Activity传null
+     */
+    public void add(Activity activity, String packageName) {
+        purge();
+        String key = packageName == null ? HOST : packageName;
+        Set<ActivityRef> refs = mActivities.get(key);
+        if (refs == null) {
+            Set<ActivityRef> created = Collections.newSetFromMap(new ConcurrentHashMap<ActivityRef, Boolean>());
+            refs = mActivities.putIfAbsent(key, created);
+            if (refs == null) {
+                refs = created;
+            }
+        }
+        refs.add(new ActivityRef(activity, key, mQueue));
+    }
+
+    /**
+     * @param packageName 插件包名, {@link #HOST}表示宿主
+     * @return 该插件还存活的Activity
+     */
+    public List<Activity> getActivities(String packageName) {
+        List<Activity> activities = new ArrayList<>();
+        Set<ActivityRef> refs = mActivities.get(packageName == null ? HOST : packageName);
+        if (refs != null) {
+            collect(refs, activities);
+        }
+        return activities;
+    }
+
+    /**
+     * @return 所有还存活的Activity
+     */
+    public List<Activity> getActivities() {
+        List<Activity> activities = new ArrayList<>();
+        for (Set<ActivityRef> refs : mActivities.values()) {
+            collect(refs, activities);
+        }
+        return activities;
+    }
+
+    /**
+     * @return key=插件包名, value=还存活的Activity数, 用于内存诊断
+     */
+    public Map<String, Integer> getActivityCounts() {
+        purge();
+        Map<String, Integer> counts = new HashMap<>();
+        for (Map.Entry<String, Set<ActivityRef>> entry : mActivities.entrySet()) {
+            int count = 0;
+            for (Iterator<ActivityRef> iterator = entry.getValue().iterator(); iterator.hasNext(); ) {
+                if (isAlive(iterator.next().get())) {
+                    count++;
+                } else {
+                    iterator.remove();
+                }
+            }
+            if (count > 0) {
+                counts.put(entry.getKey(), count);
+            }
+        }
+        return counts;
+    }
+
+    private static void collect(Set<ActivityRef> refs, List<Activity> out) {
+        for (Iterator<ActivityRef> iterator = refs.iterator(); iterator.hasNext(); ) {
+            Activity activity = iterator.next().get();
+            if (isAlive(activity)) {
+                out.add(activity);
+            } else {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @param activity
+     * @return 没被回收并且还没销毁
+     */
+    private static boolean isAlive(Activity activity) {
+        return activity != null && !activity.isDestroyed();
+    }
+
+    /**
+     * 清理已经被回收的Activity
+     */
+    private void purge() {
+        Reference<? extends Activity> ref;
+        while ((ref = mQueue.poll()) != null) {
+            ActivityRef activityRef = (ActivityRef) ref;
+            Set<ActivityRef> refs = mActivities.get(activityRef.packageName);
+            if (refs != null) {
+                refs.remove(activityRef);
+            }
+        }
+    }
+
+    private static final class ActivityRef extends WeakReference<Activity> {
+        final String packageName;
+
+        ActivityRef(Activity activity, String packageName, ReferenceQueue<Activity> queue) {
+            super(activity, queue);
+            this.packageName = packageName;
+        }
+    }
+}
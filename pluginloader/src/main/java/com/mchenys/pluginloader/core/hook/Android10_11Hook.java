@@ -39,8 +39,9 @@ public class Android10_11Hook extends Android8_9Hook {
         Class<?> iActivityTaskManagerClass = Class.forName("android.app.IActivityTaskManager");
         Class<?> activityTaskManagerClass = Class.forName("android.app.ActivityTaskManager");
         Object activityTaskManagerObj = ReflectUtils.invokeStaticMethod(activityTaskManagerClass, "getService");
+        mAMSInvocationHandler = new AMSInvocationHandler(activityTaskManagerObj, iActivityTaskManagerClass, mPluginManager);
         Object iActivityTaskManagerProxy = Proxy.newProxyInstance(ClassLoader.getSystemClassLoader(), new Class[]{iActivityTaskManagerClass},
-                new AMSInvocationHandler(activityTaskManagerObj, mPluginManager));
+                mAMSInvocationHandler);
         // Singleton<IActivityTaskManager> IActivityTaskManagerSingleton
         Object singletonObj = ReflectUtils.getStaticField(activityTaskManagerClass, "IActivityTaskManagerSingleton");
         ReflectUtils.setField(Class.forName("android.util.Singleton"), singletonObj, "mInstance", iActivityTaskManagerProxy);
@@ -11,6 +11,7 @@ import androidx.annotation.NonNull;
 
 import com.mchenys.pluginloader.core.Constants;
 import com.mchenys.pluginloader.core.PluginManager;
+import com.mchenys.pluginloader.utils.FieldAccessor;
 import com.mchenys.pluginloader.utils.PluginUtil;
 import com.mchenys.pluginloader.utils.ReflectUtils;
 
@@ -25,9 +26,14 @@ import java.lang.reflect.Proxy;
  * @Description: api21-25的hook AMS 和 ActivityThread
  */
 public class Android5_7Hook implements IAndroidHook {
+    // 每次启动Activity都要读取的ActivityClientRecord属性, 只绑定一次
+    private static final FieldAccessor<Intent> sRecordIntentField = FieldAccessor.of("android.app.ActivityThread$ActivityClientRecord", "intent");
+    private static final FieldAccessor<ActivityInfo> sRecordInfoField = FieldAccessor.of("android.app.ActivityThread$ActivityClientRecord", "activityInfo");
+
     protected String TAG = Constants.TAG_PREFIX;
 
     protected final PluginManager mPluginManager;
+    protected AMSInvocationHandler mAMSInvocationHandler;
 
     public Android5_7Hook(PluginManager pluginManager) {
         this.mPluginManager = pluginManager;
@@ -40,8 +46,9 @@ public class Android5_7Hook implements IAndroidHook {
         Class<?> iActivityManagerClass = Class.forName("android.app.IActivityManager");
         Object activityManagerNativeObj = ReflectUtils.invokeStaticMethod(activityManagerNativeClass, "getDefault");
 
+        mAMSInvocationHandler = new AMSInvocationHandler(activityManagerNativeObj, iActivityManagerClass, mPluginManager);
         Object iActivityManagerProxy = Proxy.newProxyInstance(application.getClassLoader(), new Class[]{iActivityManagerClass},
-                new AMSInvocationHandler(activityManagerNativeObj, mPluginManager));
+                mAMSInvocationHandler);
 
         // Singleton<IActivityManager> gDefault
         Object singletonObj = ReflectUtils.getStaticField(activityManagerNativeClass, "gDefault");
@@ -49,6 +56,11 @@ public class Android5_7Hook implements IAndroidHook {
 
     }
 
+    @Override
+    public AMSInvocationHandler getAMSInvocationHandler() {
+        return mAMSInvocationHandler;
+    }
+
     @Override
     public void hookActivityThread(Application application) throws Exception {
         Object activityThread = ReflectUtils.getActivityThread();
@@ -62,9 +74,9 @@ public class Android5_7Hook implements IAndroidHook {
             // ActivityClientRecord
             try {
                 Object activityClientRecord = msg.obj;
-                Intent intent = ReflectUtils.getField(activityClientRecord, "intent");
+                Intent intent = sRecordIntentField.get(activityClientRecord);
                 if (PluginUtil.isIntentFromPlugin(intent)) {
-                    ActivityInfo activityInfo = ReflectUtils.getField(activityClientRecord, "activityInfo");
+                    ActivityInfo activityInfo = sRecordInfoField.get(activityClientRecord);
                     int theme = PluginUtil.getTheme(intent);
                     if (theme != 0) {
                         Log.d(TAG, "resolve theme, current theme:" + activityInfo.theme + "  after :0x" + Integer.toHexString(theme));
@@ -11,6 +11,7 @@ import androidx.annotation.NonNull;
 
 import com.mchenys.pluginloader.core.Constants;
 import com.mchenys.pluginloader.core.PluginManager;
+import com.mchenys.pluginloader.utils.FieldAccessor;
 import com.mchenys.pluginloader.utils.PluginUtil;
 import com.mchenys.pluginloader.utils.ReflectUtils;
 
@@ -26,6 +27,9 @@ import java.util.List;
  * @Description: api 26-28
  */
 public class Android8_9Hook extends Android5_7Hook {
+    // LaunchActivityItem只在api28以上存在, 第一次访问时才绑定
+    private static final FieldAccessor<Intent> sIntentField = FieldAccessor.of("android.app.servertransaction.LaunchActivityItem", "mIntent");
+    private static final FieldAccessor<ActivityInfo> sInfoField = FieldAccessor.of("android.app.servertransaction.LaunchActivityItem", "mInfo");
 
     public Android8_9Hook(PluginManager pluginManager) {
         super(pluginManager);
@@ -36,7 +40,8 @@ public class Android8_9Hook extends Android5_7Hook {
         Class activityManagerClass = Class.forName("android.app.ActivityManager");
         Class iActivityManagerClass = Class.forName("android.app.IActivityManager");
         final Object activityManagerObj = ReflectUtils.invokeStaticMethod(activityManagerClass, "getService");
-        Object iActivityManagerProxy = Proxy.newProxyInstance(application.getClassLoader(), new Class[]{iActivityManagerClass}, new AMSInvocationHandler(activityManagerObj, mPluginManager));
+        mAMSInvocationHandler = new AMSInvocationHandler(activityManagerObj, iActivityManagerClass, mPluginManager);
+        Object iActivityManagerProxy = Proxy.newProxyInstance(application.getClassLoader(), new Class[]{iActivityManagerClass}, mAMSInvocationHandler);
         //Singleton<IActivityManager> IActivityManagerSingleton
         Object singletonObj = ReflectUtils.getStaticField(activityManagerClass, "IActivityManagerSingleton");
         ReflectUtils.setField(Class.forName("android.util.Singleton"), singletonObj, "mInstance", iActivityManagerProxy);
@@ -63,9 +68,9 @@ public class Android8_9Hook extends Android5_7Hook {
                             ReflectUtils.setField(launchActivityItem, "mIntent", pluginIntent);*/
 
                             // 处理intent交给PLInstrumentation处理,这里只设置占坑Activity的主题
-                            Intent intent = ReflectUtils.getField(LaunchActivityItemClass, launchActivityItem, "mIntent");
+                            Intent intent = sIntentField.get(launchActivityItem);
                             if (PluginUtil.isIntentFromPlugin(intent)) {
-                                ActivityInfo activityInfo = ReflectUtils.getField(LaunchActivityItemClass, launchActivityItem, "mInfo");
+                                ActivityInfo activityInfo = sInfoField.get(launchActivityItem);
                                 int theme = PluginUtil.getTheme(intent);
                                 if (theme != 0) {
                                     Log.e(TAG, "resolve theme, current theme:" + activityInfo.theme + "  after :0x" + Integer.toHexString(theme));
@@ -13,4 +13,9 @@ public interface IAndroidHook extends Handler.Callback {
     void hookAms(Application application) throws Exception;
 
     void hookActivityThread(Application application) throws Exception;
+
+    /**
+     * @return hookAms之后返回AMS代理的处理类, 否则返回null
+     */
+    AMSInvocationHandler getAMSInvocationHandler();
 }
@@ -7,25 +7,28 @@ import android.app.Instrumentation;
 import android.content.ActivityNotFoundException;
 import android.content.ComponentName;
 import android.content.Context;
+import android.content.ContextWrapper;
 import android.content.Intent;
 import android.content.pm.ActivityInfo;
 import android.content.pm.ApplicationInfo;
+import android.content.res.Resources;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.PersistableBundle;
 import android.util.Log;
+import android.view.ContextThemeWrapper;
 
 import com.mchenys.pluginloader.core.Constants;
 import com.mchenys.pluginloader.core.LoadedPlugin;
 import com.mchenys.pluginloader.core.PluginManager;
 import com.mchenys.pluginloader.core.ResourcesManager;
+import com.mchenys.pluginloader.core.StubActivityInfo;
+import com.mchenys.pluginloader.utils.FieldAccessor;
 import com.mchenys.pluginloader.utils.PluginUtil;
-import com.mchenys.pluginloader.utils.ReflectUtils;
 
-import java.lang.ref.WeakReference;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 /**
  * @Author: mChenys
@@ -34,8 +37,12 @@ import java.util.List;
  */
 public class PLInstrumentation extends Instrumentation {
     public static final String TAG = Constants.TAG_PREFIX + "PLInstrumentation";
+    // 每次启动插件Activity都要修改的隐藏属性, 只绑定一次
+    private static final FieldAccessor<Resources> sResourcesField = FieldAccessor.of(ContextThemeWrapper.class, "mResources");
+    private static final FieldAccessor<Context> sBaseField = FieldAccessor.of(ContextWrapper.class, "mBase");
+    private static final FieldAccessor<Application> sApplicationField = FieldAccessor.of(Activity.class, "mApplication");
     private final Instrumentation mBase;
-    private final ArrayList<WeakReference<Activity>> mActivities = new ArrayList<>();
+    private final ActivityRegistry mActivities = new ActivityRegistry();
     private PluginManager mPluginManager;
 
     public PLInstrumentation(PluginManager pluginManager, Instrumentation base) {
@@ -46,61 +53,73 @@ public class PLInstrumentation extends Instrumentation {
 
     @Override
     public Activity newActivity(ClassLoader cl, String className, Intent intent) throws InstantiationException, IllegalAccessException, ClassNotFoundException {
-        try {
-            // 假设className是占坑的Activity，由于只是存在清单文件，并没有对应的class文件，所以会报ClassNotFoundException，然后在catch中处理插件activity的加载
-            cl.loadClass(className);
-            Log.e(TAG, String.format("newActivity[%s]", className));
-        } catch (ClassNotFoundException e) {
-            ComponentName component = PluginUtil.getComponent(intent); // 的到插件的ComponentName
-
-            if (component == null) {
-                return newActivity(mBase.newActivity(cl, className, intent));
+        // 占坑Activity只存在清单文件中, 并没有对应的class文件, 直接根据类名判断, 不用加载类
+        if (!StubActivityInfo.isStubActivity(className)) {
+            if (Constants.DEBUG) {
+                Log.e(TAG, String.format("newActivity[%s]", className));
             }
+            Activity hostActivity = newActivity(mBase.newActivity(cl, className, intent));
+            if (null != ResourcesManager.mCombineResource) {
+                try {
+                    sResourcesField.set(hostActivity, ResourcesManager.mCombineResource);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+            return hostActivity;
+        }
 
-            String targetClassName = component.getClassName();
-            Log.e(TAG, String.format("newActivity[%s : %s/%s]", className, component.getPackageName(), targetClassName));
+        ComponentName component = PluginUtil.getComponent(intent); // 的到插件的ComponentName
 
-            LoadedPlugin plugin = this.mPluginManager.getLoadedPlugin(component);
+        if (component == null) {
+            return newActivity(mBase.newActivity(cl, className, intent));
+        }
 
-            if (plugin == null) {
-                // Not found then goto stub activity.
-                boolean debuggable = false;
-                try {
-                    Context context = this.mPluginManager.getHostContext();
-                    debuggable = (context.getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
-                } catch (Throwable ex) {
+        String targetClassName = component.getClassName();
+        if (Constants.DEBUG) {
+            Log.d(TAG, String.format("newActivity[%s : %s/%s]", className, component.getPackageName(), targetClassName));
+        }
 
-                }
+        // 进程重建后恢复插件Activity时插件可能还没加载
+        LoadedPlugin plugin = this.mPluginManager.ensurePluginLoaded(component.getPackageName());
 
-                if (debuggable) {
-                    throw new ActivityNotFoundException("error intent: " + intent.toURI());
-                }
+        if (plugin == null) {
+            // Not found then goto stub activity.
+            boolean debuggable = false;
+            try {
+                Context context = this.mPluginManager.getHostContext();
+                debuggable = (context.getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+            } catch (Throwable ex) {
 
-                Log.e(TAG, "Not found. starting the stub activity: " + StubActivity.class);
-                return newActivity(mBase.newActivity(cl, StubActivity.class.getName(), intent));
             }
 
-            Activity activity = mBase.newActivity(plugin.getClassLoader(), targetClassName, intent); // 创建插件的activity
-            activity.setIntent(intent);// 保存intent，callActivityOnCreate会取出来，注意此intent是宿主的占坑activity，
-
-            // for 4.1+
-            try {
-                // 修改插件Activity的mResources
-                ReflectUtils.setField(Class.forName("android.view.ContextThemeWrapper"), activity, "mResources", plugin.getResources());
-            } catch (Exception exception) {
-                exception.printStackTrace();
+            if (debuggable) {
+                throw new ActivityNotFoundException("error intent: " + intent.toURI());
             }
-            return newActivity(activity);
+
+            Log.e(TAG, "Not found. starting the stub activity: " + StubActivity.class);
+            return newActivity(mBase.newActivity(cl, StubActivity.class.getName(), intent));
         }
-        Activity hostActivity = newActivity(mBase.newActivity(cl, className, intent));
-        if (null != ResourcesManager.mCombineResource) {
-            try {
-                ReflectUtils.setField(Class.forName("android.view.ContextThemeWrapper"), hostActivity, "mResources", ResourcesManager.mCombineResource);
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+
+        // 和系统一样, 先创建插件的Application再创建Activity
+        plugin.ensureApplication();
+        // 通过索引直接从所在的dex加载插件Activity类, 再用定义它的ClassLoader创建, 不用依次查找宿主和其他插件的dex
+        ClassLoader activityClassLoader = plugin.getClassLoader();
+        Class<?> activityClass = this.mPluginManager.getClassOwnerIndex().loadClass(plugin.getPackageName(), targetClassName);
+        if (activityClass != null) {
+            activityClassLoader = activityClass.getClassLoader();
         }
-        return hostActivity;
+        Activity activity = mBase.newActivity(activityClassLoader, targetClassName, intent); // 创建插件的activity
+        activity.setIntent(intent);// 保存intent，callActivityOnCreate会取出来，注意此intent是宿主的占坑activity，
+
+        // for 4.1+
+        try {
+            // 修改插件Activity的mResources
+            sResourcesField.set(activity, plugin.getResources());
+        } catch (Exception exception) {
+            exception.printStackTrace();
+        }
+        return newActivity(activity, plugin.getPackageName());
     }
 
     @Override
@@ -123,11 +142,11 @@ public class PLInstrumentation extends Instrumentation {
             try {
                 LoadedPlugin plugin = this.mPluginManager.getLoadedPlugin(intent);
                 // 修改ContextWrapper的mBase
-                ReflectUtils.setField(Class.forName("android.content.ContextWrapper"), activity, "mBase", plugin.createPluginContext(activity.getBaseContext()));
+                sBaseField.set(activity, plugin.createPluginContext(activity.getBaseContext()));
                 // 修改插件Activity的mApplication
-                ReflectUtils.setField(Class.forName("android.app.Activity"), activity, "mApplication", plugin.getApplication());
+                sApplicationField.set(activity, plugin.ensureApplication());
                 // 修改插件Activity的mResources
-                ReflectUtils.setField(Class.forName("android.view.ContextThemeWrapper"), activity, "mResources", plugin.getResources());
+                sResourcesField.set(activity, plugin.getResources());
                 // 获取插件的ComponentName
                 ComponentName component = PluginUtil.getComponent(intent);
                 // set screenOrientation
@@ -148,7 +167,7 @@ public class PLInstrumentation extends Instrumentation {
         }else {
             if (null != ResourcesManager.mCombineResource) {
                 try {
-                    ReflectUtils.setField(Class.forName("android.view.ContextThemeWrapper"), activity, "mResources", ResourcesManager.mCombineResource);
+                    sResourcesField.set(activity, ResourcesManager.mCombineResource);
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
@@ -172,21 +191,39 @@ public class PLInstrumentation extends Instrumentation {
     }
 
     protected Activity newActivity(Activity activity) {
-        synchronized (mActivities) {
-            for (int i = mActivities.size() - 1; i >= 0; i--) {
-                if (mActivities.get(i).get() == null) {
-                    mActivities.remove(i);
-                }
-            }
-            mActivities.add(new WeakReference<>(activity));
-        }
+        return newActivity(activity, null);
+    }
+
+    /**
+     * @param activity
+     * @param packageName 插件包名, 宿主的Activity传null
+     * @return
+     */
+    protected Activity newActivity(Activity activity, String packageName) {
+        mActivities.add(activity, packageName);
         return activity;
     }
 
-    List<WeakReference<Activity>> getActivities() {
-        synchronized (mActivities) {
-            return new ArrayList<>(mActivities);
-        }
+    /**
+     * @return 所有还存活的Activity
+     */
+    List<Activity> getActivities() {
+        return mActivities.getActivities();
+    }
+
+    /**
+     * @param packageName 插件包名
+     * @return 该插件还存活的Activity
+     */
+    public List<Activity> getActivities(String packageName) {
+        return mActivities.getActivities(packageName);
+    }
+
+    /**
+     * @return key=插件包名, value=还存活的Activity数, 宿主的包名是{@link ActivityRegistry#HOST}
+     */
+    public Map<String, Integer> getActivityCounts() {
+        return mActivities.getActivityCounts();
     }
 
 }
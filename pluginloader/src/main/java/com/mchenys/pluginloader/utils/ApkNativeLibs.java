@@ -0,0 +1,166 @@
+package com.mchenys.pluginloader.utils;
+
+import android.os.Build;
+import android.util.Log;
+
+import com.mchenys.pluginloader.core.Constants;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @Author: mChenys
+ * @Date: 2021/5/22
+ * @Description: 检查插件apk中的so是否可以直接从apk中加载(extractNativeLibs=false)
+ * <p>
+ * so未压缩并且按页对齐时, 6.0以上的linker可以通过"apk!/lib/abi"路径直接mmap, 不需要解压到磁盘
+ */
+public class ApkNativeLibs {
+    private static final String TAG = Constants.TAG_PREFIX + "ApkNativeLibs";
+
+    private static final int PAGE_SIZE = 4096;
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int CD_SIGNATURE = 0x02014b50;
+    private static final int LFH_SIGNATURE = 0x04034b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+    private static final int METHOD_STORED = 0;
+
+    /**
+     * 返回可以直接加载so的路径
+     *
+     * @param apk
+     * @return "apk!/lib/abi", 不支持、没有so或者so被压缩、没有对齐时返回null
+     */
+    public static String getInPlaceLibraryPath(File apk) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return null;
+        }
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(apk, "r");
+            List<LibEntry> entries = readLibEntries(file);
+            for (String abi : Build.SUPPORTED_ABIS) {
+                String prefix = "lib/" + abi + "/";
+                boolean found = false;
+                for (LibEntry entry : entries) {
+                    if (!entry.name.startsWith(prefix)) {
+                        continue;
+                    }
+                    found = true;
+                    if (entry.method != METHOD_STORED || getDataOffset(file, entry) % PAGE_SIZE != 0) {
+                        Log.d(TAG, "compressed or unaligned so: " + entry.name);
+                        return null;
+                    }
+                }
+                if (found) {
+                    // 和拷贝时一样, 只使用第一个存在的abi
+                    return apk.getAbsolutePath() + "!/lib/" + abi;
+                }
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "check apk failed: " + apk.getName(), e);
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 读取中央目录中所有的so条目
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    private static List<LibEntry> readLibEntries(RandomAccessFile file) throws IOException {
+        long length = file.length();
+        int tailSize = (int) Math.min(length, EOCD_SIZE + MAX_COMMENT_SIZE);
+        byte[] tail = new byte[tailSize];
+        file.seek(length - tailSize);
+        file.readFully(tail);
+        int eocd = -1;
+        for (int i = tailSize - EOCD_SIZE; i >= 0; i--) {
+            if (readInt(tail, i) == EOCD_SIGNATURE) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new IOException("end of central directory not found");
+        }
+        int count = readShort(tail, eocd + 10);
+        long cdSize = readInt(tail, eocd + 12) & 0xffffffffL;
+        long cdOffset = readInt(tail, eocd + 16) & 0xffffffffL;
+        if (cdOffset + cdSize > length) {
+            // zip64或者文件损坏
+            throw new IOException("invalid central directory");
+        }
+        byte[] cd = new byte[(int) cdSize];
+        file.seek(cdOffset);
+        file.readFully(cd);
+
+        Charset utf8 = Charset.forName("UTF-8");
+        List<LibEntry> entries = new ArrayList<>();
+        int offset = 0;
+        for (int i = 0; i < count; i++) {
+            if (readInt(cd, offset) != CD_SIGNATURE) {
+                throw new IOException("invalid central directory entry");
+            }
+            int method = readShort(cd, offset + 10);
+            int nameLength = readShort(cd, offset + 28);
+            int extraLength = readShort(cd, offset + 30);
+            int commentLength = readShort(cd, offset + 32);
+            long localHeaderOffset = readInt(cd, offset + 42) & 0xffffffffL;
+            String name = new String(cd, offset + 46, nameLength, utf8);
+            if (name.startsWith("lib/") && name.endsWith(".so")) {
+                entries.add(new LibEntry(name, method, localHeaderOffset));
+            }
+            offset += 46 + nameLength + extraLength + commentLength;
+        }
+        return entries;
+    }
+
+    /**
+     * 数据的偏移 = 本地文件头偏移 + 30 + 文件名长度 + 本地extra长度
+     */
+    private static long getDataOffset(RandomAccessFile file, LibEntry entry) throws IOException {
+        byte[] header = new byte[30];
+        file.seek(entry.localHeaderOffset);
+        file.readFully(header);
+        if (readInt(header, 0) != LFH_SIGNATURE) {
+            throw new IOException("invalid local file header: " + entry.name);
+        }
+        return entry.localHeaderOffset + 30 + readShort(header, 26) + readShort(header, 28);
+    }
+
+    private static int readShort(byte[] data, int offset) {
+        return (data[offset] & 0xff) | ((data[offset + 1] & 0xff) << 8);
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xff) | ((data[offset + 1] & 0xff) << 8)
+                | ((data[offset + 2] & 0xff) << 16) | ((data[offset + 3] & 0xff) << 24);
+    }
+
+    private static final class LibEntry {
+        final String name;
+        final int method;
+        final long localHeaderOffset;
+
+        LibEntry(String name, int method, long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+    }
+}
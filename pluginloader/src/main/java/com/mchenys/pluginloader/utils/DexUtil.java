@@ -2,14 +2,18 @@ package com.mchenys.pluginloader.utils;
 
 import android.os.Build;
 
-import com.mchenys.pluginloader.core.Constants;
-
 import java.io.File;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import dalvik.system.DexClassLoader;
+import dalvik.system.DexFile;
 
 /**
  * @Author: mChenys
@@ -18,25 +22,106 @@ import dalvik.system.DexClassLoader;
  */
 public class DexUtil {
 
-    private static boolean sHasInsertedNativeLibrary = false;
-
     /**
-     * 合并插件dex到宿主中
+     * 合并插件dex到宿主中, 多个插件一起合并时使用{@link #insertDex(List, ClassLoader, List)}
      *
      * @param dexClassLoader
      * @param baseClassLoader
-     * @param nativeLibsDir
+     * @param libDir          插件自己的so目录
+     * @throws Exception
+     */
+    public static void insertDex(DexClassLoader dexClassLoader, ClassLoader baseClassLoader, File libDir) throws Exception {
+        insertDex(Collections.singletonList(dexClassLoader), baseClassLoader, Collections.singletonList(libDir));
+    }
+
+    /**
+     * 批量合并插件dex到宿主中, 只分配一次dexElements数组
+     *
+     * @param dexClassLoaders
+     * @param baseClassLoader
+     * @param libDirs         和dexClassLoaders一一对应的插件so目录
      * @throws Exception
      */
-    public static void insertDex(DexClassLoader dexClassLoader, ClassLoader baseClassLoader, File nativeLibsDir) throws Exception {
-        Object hostDexElements = ReflectUtils.getDexElements(ReflectUtils.getPathList(baseClassLoader));
-        Object pluginDexElements = ReflectUtils.getDexElements(ReflectUtils.getPathList(dexClassLoader));
+    public static synchronized void insertDex(List<DexClassLoader> dexClassLoaders, ClassLoader baseClassLoader, List<File> libDirs) throws Exception {
+        if (dexClassLoaders.isEmpty()) {
+            return;
+        }
+        Object hostPathList = ReflectUtils.getPathList(baseClassLoader);
+        Object hostDexElements = ReflectUtils.getDexElements(hostPathList);
+        Object[] pluginDexElements = new Object[dexClassLoaders.size()];
+        for (int i = 0; i < pluginDexElements.length; i++) {
+            pluginDexElements[i] = ReflectUtils.getDexElements(ReflectUtils.getPathList(dexClassLoaders.get(i)));
+        }
         Object allDexElements = combineArray(hostDexElements, pluginDexElements);
-        applyDexElement(baseClassLoader, allDexElements);
-        insertNativeLibrary(dexClassLoader, baseClassLoader, nativeLibsDir);
+        applyDexElement(hostPathList, allDexElements);
+        insertNativeLibrary(dexClassLoaders, baseClassLoader, libDirs);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            insertInPlaceLibraries(dexClassLoaders, hostPathList);
+        }
+    }
+
+    /**
+     * 合并插件中直接从apk加载的so路径("apk!/lib/abi"), 每个插件的路径不同, 需要逐个加入宿主
+     *
+     * @param dexClassLoaders
+     * @param hostPathList
+     * @throws Exception
+     */
+    private static void insertInPlaceLibraries(List<DexClassLoader> dexClassLoaders, Object hostPathList) throws Exception {
+        Object hostElements = ReflectUtils.getNativeLibraryPathElements(hostPathList);
+        // 宿主中已有的apk内路径, 重新加载插件时不重复添加
+        Set<String> existingPaths = new HashSet<>();
+        for (int i = 0, length = Array.getLength(hostElements); i < length; i++) {
+            String zipPath = getZipLibraryPath(Array.get(hostElements, i));
+            if (zipPath != null) {
+                existingPaths.add(zipPath);
+            }
+        }
+        List<Object> zipElements = new ArrayList<>();
+        for (DexClassLoader dexClassLoader : dexClassLoaders) {
+            Object pluginElements = ReflectUtils.getNativeLibraryPathElements(ReflectUtils.getPathList(dexClassLoader));
+            for (int i = 0, length = Array.getLength(pluginElements); i < length; i++) {
+                Object element = Array.get(pluginElements, i);
+                // 插件的so路径中只有apk中的路径是zip类型
+                String zipPath = getZipLibraryPath(element);
+                if (zipPath != null && existingPaths.add(zipPath)) {
+                    zipElements.add(element);
+                }
+            }
+        }
+        if (zipElements.isEmpty()) {
+            return;
+        }
+        int hostSize = Array.getLength(hostElements);
+        Object allElements = Array.newInstance(hostElements.getClass().getComponentType(), hostSize + zipElements.size());
+        System.arraycopy(hostElements, 0, allElements, 0, hostSize);
+        for (int i = 0; i < zipElements.size(); i++) {
+            Array.set(allElements, hostSize + i, zipElements.get(i));
+        }
+        ReflectUtils.setField(hostPathList, "nativeLibraryPathElements", allElements);
     }
 
 
+    /**
+     * 获取ClassLoader中所有dex, 按dexElements的顺序
+     *
+     * @param classLoader
+     * @return
+     * @throws Exception
+     */
+    public static List<DexFile> getDexFiles(ClassLoader classLoader) throws Exception {
+        List<DexFile> dexFiles = new ArrayList<>();
+        Object dexElements = ReflectUtils.getDexElements(ReflectUtils.getPathList(classLoader));
+        for (int i = 0, length = Array.getLength(dexElements); i < length; i++) {
+            Object element = Array.get(dexElements, i);
+            DexFile dexFile = (DexFile) ReflectUtils.findField(element.getClass(), "dexFile").get(element);
+            if (dexFile != null) {
+                dexFiles.add(dexFile);
+            }
+        }
+        return dexFiles;
+    }
+
     /**
      * 合并dexElements
      *
@@ -44,90 +129,127 @@ public class DexUtil {
      * @param pluginDexElements
      * @return
      */
-    private static Object combineArray(Object hostDexElements, Object pluginDexElements) {
+    private static Object combineArray(Object hostDexElements, Object[] pluginDexElements) {
         int hostSize = Array.getLength(hostDexElements);
-        int pluginSize = Array.getLength(pluginDexElements);
-        Object newDexElements = Array.newInstance(hostDexElements.getClass().getComponentType(), hostSize + pluginSize);
+        int totalSize = hostSize;
+        for (Object elements : pluginDexElements) {
+            totalSize += Array.getLength(elements);
+        }
+        Object newDexElements = Array.newInstance(hostDexElements.getClass().getComponentType(), totalSize);
         System.arraycopy(hostDexElements, 0, newDexElements, 0, hostSize);
-        System.arraycopy(pluginDexElements, 0, newDexElements, hostSize, pluginSize);
+        int offset = hostSize;
+        for (Object elements : pluginDexElements) {
+            int pluginSize = Array.getLength(elements);
+            System.arraycopy(elements, 0, newDexElements, offset, pluginSize);
+            offset += pluginSize;
+        }
         return newDexElements;
     }
 
     /**
      * 使用合并后的dexElement
      *
-     * @param baseClassLoader
+     * @param pathList       宿主的DexPathList
      * @param allDexElements
      * @throws Exception
      */
-    private static void applyDexElement(ClassLoader baseClassLoader, Object allDexElements) throws Exception {
-        Object pathList = ReflectUtils.getPathList(baseClassLoader);
-        Field dexElements = pathList.getClass().getDeclaredField("dexElements");
-        dexElements.setAccessible(true);
-        dexElements.set(pathList, allDexElements);
+    private static void applyDexElement(Object pathList, Object allDexElements) throws Exception {
+        ReflectUtils.findField(pathList.getClass(), "dexElements").set(pathList, allDexElements);
     }
 
     /**
-     * 合并插件的so
+     * 读取so路径元素中的apk路径
+     * <p>
+     * api26及以上是NativeLibraryElement(path, zipDir), 23~25是Element(dir, isDirectory, zip, dexFile), zip为null时是目录
      *
-     * @param dexClassLoader
-     * @param baseClassLoader
-     * @param nativeLibsDir
+     * @param element
+     * @return apk中的so路径"apk!/lib/abi", 是目录时返回null
      * @throws Exception
      */
-    private static synchronized void insertNativeLibrary(DexClassLoader dexClassLoader, ClassLoader baseClassLoader, File nativeLibsDir) throws Exception {
-        if (sHasInsertedNativeLibrary) {
-            return;
+    private static String getZipLibraryPath(Object element) throws Exception {
+        File zip;
+        Object dir;
+        if (Build.VERSION.SDK_INT >= 26) {
+            dir = ReflectUtils.getField(element.getClass(), element, "zipDir");
+            zip = dir != null ? (File) ReflectUtils.getField(element.getClass(), element, "path") : null;
+        } else {
+            zip = ReflectUtils.getField(element.getClass(), element, "zip");
+            dir = zip != null ? ReflectUtils.getField(element.getClass(), element, "dir") : null;
+        }
+        if (zip == null) {
+            return null;
         }
-        sHasInsertedNativeLibrary = true;
+        return zip.getAbsolutePath() + "!/" + (dir instanceof File ? ((File) dir).getPath() : String.valueOf(dir));
+    }
 
+    /**
+     * 把每个插件自己的so目录追加到宿主的so查找路径中, 已经在宿主中的目录不再添加
+     * <p>
+     * 不同插件的so在各自的目录中, 不会互相覆盖, 同名so按插件合并的顺序查找
+     *
+     * @param dexClassLoaders
+     * @param baseClassLoader
+     * @param libDirs         和dexClassLoaders一一对应的插件so目录
+     * @throws Exception
+     */
+    private static void insertNativeLibrary(List<DexClassLoader> dexClassLoaders, ClassLoader baseClassLoader, List<File> libDirs) throws Exception {
         // 宿主的DexPathList
         Object hostDexPathList = ReflectUtils.getPathList(baseClassLoader);
-        // 插件的DexPathList
-        Object pluginDexPathList = ReflectUtils.getPathList(dexClassLoader);
         if (Build.VERSION.SDK_INT > Build.VERSION_CODES.LOLLIPOP_MR1) {
             // 获取宿主的nativeLibraryDirectories,添加插件的libs
             List<File> nativeLibraryDirectories = (List<File>) ReflectUtils.getNativeLibraryDirectories(hostDexPathList);
-            nativeLibraryDirectories.add(nativeLibsDir);
-
             // 获取宿主的NativeLibraryElement[]
             Object hostNativeLibraryPathElements = ReflectUtils.getNativeLibraryPathElements(hostDexPathList);
-            final int baseArrayLength = Array.getLength(hostNativeLibraryPathElements);
-
-            // 获取插件的NativeLibraryElement[]
-            Object pluginNativeLibraryPathElements = ReflectUtils.getNativeLibraryPathElements(pluginDexPathList);
-            Class<?> elementClass = pluginNativeLibraryPathElements.getClass().getComponentType();
-            Object allNativeLibraryPathElements = Array.newInstance(elementClass, baseArrayLength + 1);
-            System.arraycopy(hostNativeLibraryPathElements, 0, allNativeLibraryPathElements, 0, baseArrayLength);
-
-            // 从插件的NativeLibraryElement 中获取path或者dir属性
+            Class<?> elementClass = hostNativeLibraryPathElements.getClass().getComponentType();
+            // 从NativeLibraryElement 中获取path或者dir属性
             Field soPathField;
             if (Build.VERSION.SDK_INT >= 26) {
-                soPathField = elementClass.getDeclaredField("path");
+                soPathField = ReflectUtils.findField(elementClass, "path");
             } else {
-                soPathField = elementClass.getDeclaredField("dir");
+                soPathField = ReflectUtils.findField(elementClass, "dir");
             }
-            soPathField.setAccessible(true);
-            final int newArrayLength = Array.getLength(pluginNativeLibraryPathElements);
-            for (int i = 0; i < newArrayLength; i++) {
-                Object element = Array.get(pluginNativeLibraryPathElements, i);
-                String dir = ((File) soPathField.get(element)).getAbsolutePath();
-                if (dir.contains(Constants.NATIVE_DIR)) {
-                    // 取出NativeLibraryElement 并插入到allNativeLibraryPathElements数组中
-                    Array.set(allNativeLibraryPathElements, baseArrayLength, element);
-                    break;
+            List<Object> newElements = new ArrayList<>();
+            for (int i = 0; i < dexClassLoaders.size(); i++) {
+                File libDir = libDirs.get(i);
+                if (nativeLibraryDirectories.contains(libDir)) {
+                    continue;
+                }
+                nativeLibraryDirectories.add(libDir);
+                // 插件的NativeLibraryElement[]中还有系统目录, 这里只取插件自己的目录
+                Object pluginNativeLibraryPathElements = ReflectUtils.getNativeLibraryPathElements(ReflectUtils.getPathList(dexClassLoaders.get(i)));
+                for (int j = 0, length = Array.getLength(pluginNativeLibraryPathElements); j < length; j++) {
+                    Object element = Array.get(pluginNativeLibraryPathElements, j);
+                    File dir = (File) soPathField.get(element);
+                    if (dir != null && dir.getAbsolutePath().equals(libDir.getAbsolutePath())) {
+                        newElements.add(element);
+                        break;
+                    }
                 }
             }
+            if (newElements.isEmpty()) {
+                return;
+            }
+            final int baseArrayLength = Array.getLength(hostNativeLibraryPathElements);
+            Object allNativeLibraryPathElements = Array.newInstance(elementClass, baseArrayLength + newElements.size());
+            System.arraycopy(hostNativeLibraryPathElements, 0, allNativeLibraryPathElements, 0, baseArrayLength);
+            for (int i = 0; i < newElements.size(); i++) {
+                Array.set(allNativeLibraryPathElements, baseArrayLength + i, newElements.get(i));
+            }
             // 更新宿主DexPathList的NativeLibraryElement[]
             ReflectUtils.setField(hostDexPathList, "nativeLibraryPathElements", allNativeLibraryPathElements);
         } else {
             File[] nativeLibraryDirectories = (File[]) ReflectUtils.getNativeLibraryDirectories(hostDexPathList);
-            final int N = nativeLibraryDirectories.length;
-            File[] newNativeLibraryDirectories = new File[N + 1];
-            System.arraycopy(nativeLibraryDirectories, 0, newNativeLibraryDirectories, 0, N);
-            // 直接追加
-            newNativeLibraryDirectories[N] = nativeLibsDir;
-            ReflectUtils.setField(hostDexPathList, "nativeLibraryDirectories", newNativeLibraryDirectories);
+            List<File> newNativeLibraryDirectories = new ArrayList<>(Arrays.asList(nativeLibraryDirectories));
+            for (File libDir : libDirs) {
+                if (!newNativeLibraryDirectories.contains(libDir)) {
+                    // 直接追加
+                    newNativeLibraryDirectories.add(libDir);
+                }
+            }
+            if (newNativeLibraryDirectories.size() > nativeLibraryDirectories.length) {
+                ReflectUtils.setField(hostDexPathList, "nativeLibraryDirectories",
+                        newNativeLibraryDirectories.toArray(new File[newNativeLibraryDirectories.size()]));
+            }
         }
     }
 
@@ -0,0 +1,232 @@
+package com.mchenys.pluginloader.utils;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.Log;
+
+import com.mchenys.pluginloader.core.Constants;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+
+/**
+ * @Author: mChenys
+ * @Date: 2021/5/18
+ * @Description: 隐藏属性的访问器, 第一次使用时解析并绑定, 之后的读写不再按名称查找属性
+ * <p>
+ * api26以上绑定成MethodHandle, 以下和绑定失败时使用反射的Field.
+ * minSdk为21时D8不允许调用MethodHandle.invokeExact/invoke, 所以MethodHandle通过invokeWithArguments调用
+ */
+public class FieldAccessor<T> {
+    private static final String TAG = Constants.TAG_PREFIX + "FieldAccessor";
+
+    /**
+     * 按系统版本选择
+     */
+    public static final int BACKEND_AUTO = 0;
+    /**
+     * 反射Field
+     */
+    public static final int BACKEND_REFLECT = 1;
+    /**
+     * MethodHandle, 需要api26以上
+     */
+    public static final int BACKEND_METHOD_HANDLE = 2;
+
+    private final String mClassName;
+    private final String mFieldName;
+    private final int mRequestedBackend;
+    private Class<?> mClass;
+    private volatile Backend mBackend;
+
+    private FieldAccessor(Class<?> clazz, String className, String fieldName, int backend) {
+        this.mClass = clazz;
+        this.mClassName = className;
+        this.mFieldName = fieldName;
+        this.mRequestedBackend = backend;
+    }
+
+    /**
+     * @param clazz     声明该属性的类
+     * @param fieldName 属性名
+     * @return
+     */
+    public static <T> FieldAccessor<T> of(Class<?> clazz, String fieldName) {
+        return of(clazz, fieldName, BACKEND_AUTO);
+    }
+
+    /**
+     * @param clazz     声明该属性的类
+     * @param fieldName 属性名
+     * @param backend   {@link #BACKEND_AUTO}等, 指定的实现不可用时使用反射
+     * @return
+     */
+    public static <T> FieldAccessor<T> of(Class<?> clazz, String fieldName, int backend) {
+        return new FieldAccessor<>(clazz, clazz.getName(), fieldName, backend);
+    }
+
+    /**
+     * 类在低版本可能不存在, 所以延迟到第一次访问时才加载
+     *
+     * @param className 声明该属性的类名
+     * @param fieldName 属性名
+     * @return
+     */
+    public static <T> FieldAccessor<T> of(String className, String fieldName) {
+        return new FieldAccessor<>(null, className, fieldName, BACKEND_AUTO);
+    }
+
+    /**
+     * 读取属性
+     *
+     * @param instance
+     * @return
+     * @throws Exception
+     */
+    public T get(Object instance) throws Exception {
+        return (T) bind().get(instance);
+    }
+
+    /**
+     * 写入属性
+     *
+     * @param instance
+     * @param value
+     * @throws Exception
+     */
+    public void set(Object instance, T value) throws Exception {
+        bind().set(instance, value);
+    }
+
+    /**
+     * 当前系统版本是否存在该属性
+     *
+     * @return
+     */
+    public boolean isAvailable() {
+        try {
+            bind();
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return 实际使用的实现, {@link #BACKEND_REFLECT}或{@link #BACKEND_METHOD_HANDLE}
+     * @throws Exception 属性不存在
+     */
+    public int getBackend() throws Exception {
+        return bind().type();
+    }
+
+    private Backend bind() throws Exception {
+        Backend backend = mBackend;
+        if (backend == null) {
+            if (mClass == null) {
+                mClass = Class.forName(mClassName);
+            }
+            // ReflectUtils中有缓存, 并发时重复解析拿到的是同一个Field
+            Field field = ReflectUtils.findField(mClass, mFieldName);
+            int type = mRequestedBackend;
+            if (type == BACKEND_AUTO) {
+                type = Build.VERSION.SDK_INT >= 26 ? BACKEND_METHOD_HANDLE : BACKEND_REFLECT;
+            }
+            if (type == BACKEND_METHOD_HANDLE && Build.VERSION.SDK_INT >= 26) {
+                try {
+                    backend = new MethodHandleBackend(field);
+                } catch (Exception e) {
+                    Log.w(TAG, "bind method handle failed: " + this, e);
+                }
+            }
+            if (backend == null) {
+                backend = new ReflectBackend(field);
+            }
+            mBackend = backend;
+        }
+        return backend;
+    }
+
+    @Override
+    public String toString() {
+        return mClassName + "#" + mFieldName;
+    }
+
+    private interface Backend {
+        Object get(Object instance) throws Exception;
+
+        void set(Object instance, Object value) throws Exception;
+
+        int type();
+    }
+
+    private static final class ReflectBackend implements Backend {
+        private final Field mField;
+
+        ReflectBackend(Field field) {
+            this.mField = field;
+        }
+
+        @Override
+        public Object get(Object instance) throws Exception {
+            return mField.get(instance);
+        }
+
+        @Override
+        public void set(Object instance, Object value) throws Exception {
+            mField.set(instance, value);
+        }
+
+        @Override
+        public int type() {
+            return BACKEND_REFLECT;
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.O)
+    private static final class MethodHandleBackend implements Backend {
+        private final MethodHandle mGetter;
+        private final MethodHandle mSetter;
+
+        MethodHandleBackend(Field field) throws IllegalAccessException {
+            // field已经setAccessible, 绑定后调用时不再检查访问权限
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            this.mGetter = lookup.unreflectGetter(field);
+            this.mSetter = lookup.unreflectSetter(field);
+        }
+
+        @Override
+        public Object get(Object instance) throws Exception {
+            try {
+                return mGetter.invokeWithArguments((Object) instance);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        @Override
+        public void set(Object instance, Object value) throws Exception {
+            try {
+                mSetter.invokeWithArguments(instance, value);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        @Override
+        public int type() {
+            return BACKEND_METHOD_HANDLE;
+        }
+
+        private static Exception rethrow(Throwable e) {
+            if (e instanceof Exception) {
+                return (Exception) e;
+            }
+            if (e instanceof Error) {
+                throw (Error) e;
+            }
+            return new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.mchenys.pluginloader.utils;
+
+import android.content.Context;
+import android.system.Os;
+import android.util.Log;
+
+import com.mchenys.pluginloader.core.Constants;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.zip.ZipEntry;
+
+/**
+ * @Author: mChenys
+ * @Date: 2021/5/21
+ * @Description: 按内容寻址的so存储, 文件名由zip条目的CRC32和大小决定, 内容相同的so在磁盘上只保存一份
+ * <p>
+ * 插件的so目录中只放指向存储文件的软链接, 插件升级时内容没变的so不需要重新解压
+ */
+public class NativeLibStore {
+    private static final String TAG = Constants.TAG_PREFIX + "NativeLibStore";
+
+    /**
+     * 返回so在存储中的文件
+     *
+     * @param context
+     * @param entry   so对应的zip条目
+     * @param libName so文件名
+     * @return
+     */
+    public static File getStoreFile(Context context, ZipEntry entry, String libName) {
+        File dir = context.getDir(Constants.NATIVE_STORE_DIR, Context.MODE_PRIVATE);
+        return new File(dir, String.format(Locale.US, "%08x_%d_%s", entry.getCrc(), entry.getSize(), libName));
+    }
+
+    /**
+     * 存储中是否已有该so, zip条目没有CRC或大小时不能确定内容, 返回false
+     *
+     * @param storeFile
+     * @param entry
+     * @return
+     */
+    public static boolean contains(File storeFile, ZipEntry entry) {
+        return entry.getCrc() >= 0 && entry.getSize() >= 0
+                && storeFile.exists() && storeFile.length() == entry.getSize();
+    }
+
+    /**
+     * 插件自己的so目录, 每个插件的so只放在自己的目录中
+     *
+     * @param nativeLibDir 所有插件so目录的父目录
+     * @param packageName
+     * @return
+     */
+    public static File getPluginLibDir(File nativeLibDir, String packageName) {
+        return new File(nativeLibDir, packageName);
+    }
+
+    /**
+     * 让linkFile指向storeFile, 已经指向时不做任何操作
+     * <p>
+     * 先在临时文件上创建链接再重命名, 替换是原子的, 其他线程不会读到不存在或写了一半的so
+     *
+     * @param storeFile
+     * @param linkFile
+     * @throws IOException
+     */
+    public static void link(File storeFile, File linkFile) throws IOException {
+        if (linkFile.getCanonicalPath().equals(storeFile.getCanonicalPath())) {
+            return;
+        }
+        File parent = linkFile.getParentFile();
+        if (!parent.exists()) {
+            parent.mkdirs();
+        }
+        File tmpFile = File.createTempFile(linkFile.getName(), ".tmp", parent);
+        tmpFile.delete();
+        try {
+            Os.symlink(storeFile.getAbsolutePath(), tmpFile.getAbsolutePath());
+        } catch (Exception e) {
+            // 不支持软链接时退回到拷贝
+            Log.w(TAG, "symlink failed, copy " + storeFile.getName(), e);
+            try {
+                PluginUtil.copy(storeFile, tmpFile, false);
+            } catch (Exception copyError) {
+                tmpFile.delete();
+                throw new IOException("copy failed: " + storeFile, copyError);
+            }
+        }
+        if (!tmpFile.renameTo(linkFile)) {
+            tmpFile.delete();
+            throw new IOException("rename failed: " + linkFile);
+        }
+    }
+}
@@ -14,16 +14,23 @@ import com.mchenys.pluginloader.core.Constants;
 import com.mchenys.pluginloader.core.LoadedPlugin;
 import com.mchenys.pluginloader.core.PluginManager;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -35,6 +42,8 @@ import java.util.zip.ZipFile;
 public class PluginUtil {
 
     public static final String TAG = Constants.TAG_PREFIX + "NativeLib";
+    // so拷贝时每次从zip流转到文件的最大字节数
+    private static final int COPY_CHUNK_SIZE = 256 * 1024;
 
     /**
      * 获取intent的ComponentName
@@ -161,35 +170,42 @@ public class PluginUtil {
      */
     public static void copyNativeLib(File apk, Context context, PackageInfo packageInfo, File nativeLibDir) throws Exception {
         long startTime = System.currentTimeMillis();
+        NativeLibStats stats = new NativeLibStats();
         ZipFile zipfile = new ZipFile(apk.getAbsolutePath());
         try {
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
                 for (String cpuArch : Build.SUPPORTED_ABIS) {
-                    if (findAndCopyNativeLib(zipfile, context, cpuArch, packageInfo, nativeLibDir)) {
+                    if (findAndCopyNativeLib(zipfile, context, cpuArch, packageInfo, nativeLibDir, stats)) {
                         return;
                     }
                 }
             } else {
-                if (findAndCopyNativeLib(zipfile, context, Build.CPU_ABI, packageInfo, nativeLibDir)) {
+                if (findAndCopyNativeLib(zipfile, context, Build.CPU_ABI, packageInfo, nativeLibDir, stats)) {
                     return;
                 }
             }
-            findAndCopyNativeLib(zipfile, context, "armeabi", packageInfo, nativeLibDir);
+            findAndCopyNativeLib(zipfile, context, "armeabi", packageInfo, nativeLibDir, stats);
         } finally {
             zipfile.close();
-            Log.d(TAG, "Done! +" + (System.currentTimeMillis() - startTime) + "ms");
+            long cost = System.currentTimeMillis() - startTime;
+            Log.d(TAG, "Done! copied " + stats.copied + " so, skipped " + stats.skipped + ", " + stats.bytes + " bytes, "
+                    + (stats.bytes * 1000 / Math.max(cost, 1)) + " bytes/s +" + cost + "ms");
         }
     }
 
 
-    private static boolean findAndCopyNativeLib(ZipFile zipfile, Context context, String cpuArch, PackageInfo packageInfo, File nativeLibDir) throws Exception {
+    private static boolean findAndCopyNativeLib(final ZipFile zipfile, Context context, String cpuArch, final PackageInfo packageInfo,
+                                                final File nativeLibDir, final NativeLibStats stats) throws Exception {
         Log.d(TAG, "Try to copy plugin's cup arch: " + cpuArch);
         boolean findLib = false;
         boolean findSo = false;
-        byte buffer[] = null;
         String libPrefix = "lib/" + cpuArch + "/";
         ZipEntry entry;
         Enumeration e = zipfile.entries();
+        // 该cpu架构的所有so, key=so文件名, value=存储中的文件
+        Map<String, File> libFiles = new LinkedHashMap<>();
+        // 存储中还没有的so, key=存储中的文件
+        final Map<File, ZipEntry> copyEntries = new LinkedHashMap<>();
 
         while (e.hasMoreElements()) {
             entry = (ZipEntry) e.nextElement();
@@ -209,27 +225,22 @@ public class PluginUtil {
                 continue;
             }
 
-            if (buffer == null) {
+            if (!findSo) {
                 findSo = true;
                 Log.d(TAG, "Found plugin's cup arch dir: " + cpuArch);
-                buffer = new byte[8192];
             }
 
             String libName = entryName.substring(entryName.lastIndexOf('/') + 1);
             Log.d(TAG, "verify so " + libName);
-            File libFile = new File(nativeLibDir, libName);
-            String key = packageInfo.packageName + "_" + libName;
-            if (libFile.exists()) {
-                int VersionCode = Settings.getSoVersion(context, key);
-                if (VersionCode == packageInfo.versionCode) {
-                    Log.d(TAG, "skip existing so : " + entry.getName());
-                    continue;
-                }
+            File storeFile = NativeLibStore.getStoreFile(context, entry, libName);
+            libFiles.put(libName, storeFile);
+            if (NativeLibStore.contains(storeFile, entry)) {
+                // CRC和大小相同说明内容没变, 不需要再解压
+                Log.d(TAG, "skip existing so : " + entry.getName());
+                stats.skipped++;
+                continue;
             }
-            FileOutputStream fos = new FileOutputStream(libFile);
-            Log.d(TAG, "copy so " + entry.getName() + " of " + cpuArch);
-            copySo(buffer, zipfile.getInputStream(entry), fos);
-            Settings.setSoVersion(context, key, packageInfo.versionCode);
+            copyEntries.put(storeFile, entry);
         }
 
         if (!findLib) {
@@ -237,22 +248,90 @@ public class PluginUtil {
             return true;
         }
 
+        if (!copyEntries.isEmpty()) {
+            // 每个so一个任务, 在线程池中并行解压, 当前线程也参与执行
+            List<FutureTask<Long>> tasks = new ArrayList<>();
+            for (final Map.Entry<File, ZipEntry> copyEntry : copyEntries.entrySet()) {
+                tasks.add(new FutureTask<>(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        Log.d(TAG, "copy so " + copyEntry.getValue().getName());
+                        return copySo(zipfile.getInputStream(copyEntry.getValue()), copyEntry.getKey());
+                    }
+                }));
+            }
+            Executor executor = RunUtils.getThreadPool();
+            for (int i = 1; i < tasks.size(); i++) {
+                executor.execute(tasks.get(i));
+            }
+            Exception error = null;
+            for (FutureTask<Long> task : tasks) {
+                task.run();
+                try {
+                    stats.bytes += task.get();
+                    stats.copied++;
+                } catch (ExecutionException ee) {
+                    if (error == null) {
+                        error = ee.getCause() instanceof Exception ? (Exception) ee.getCause() : ee;
+                    }
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+
+        // so只放在插件自己的目录中, 不会和其他插件的同名so互相覆盖
+        File pluginLibDir = NativeLibStore.getPluginLibDir(nativeLibDir, packageInfo.packageName);
+        for (Map.Entry<String, File> libFile : libFiles.entrySet()) {
+            NativeLibStore.link(libFile.getValue(), new File(pluginLibDir, libFile.getKey()));
+        }
+
         return findSo;
     }
 
-    private static void copySo(byte[] buffer, InputStream input, OutputStream output) throws IOException {
-        BufferedInputStream bufferedInput = new BufferedInputStream(input);
-        BufferedOutputStream bufferedOutput = new BufferedOutputStream(output);
-        int count;
-
-        while ((count = bufferedInput.read(buffer)) > 0) {
-            bufferedOutput.write(buffer, 0, count);
+    /**
+     * 拷贝so, 先写临时文件再重命名, 避免拷贝失败时留下不完整的so, 多个插件同时解压同一个so时也不会互相覆盖
+     * <p>
+     * 通过FileChannel.transferFrom写入, 不再经过Java堆上的缓冲数组中转
+     *
+     * @param input
+     * @param libFile
+     * @return 拷贝的字节数
+     * @throws IOException
+     */
+    private static long copySo(InputStream input, File libFile) throws IOException {
+        File tmpFile = File.createTempFile(libFile.getName(), ".tmp", libFile.getParentFile());
+        ReadableByteChannel inChannel = Channels.newChannel(input);
+        FileChannel outChannel = new FileOutputStream(tmpFile).getChannel();
+        long total = 0;
+        try {
+            long count;
+            // 流读完时transferFrom返回0
+            while ((count = outChannel.transferFrom(inChannel, total, COPY_CHUNK_SIZE)) > 0) {
+                total += count;
+            }
+        } catch (IOException e) {
+            tmpFile.delete();
+            throw e;
+        } finally {
+            outChannel.close();
+            inChannel.close();
+        }
+        if (!tmpFile.renameTo(libFile)) {
+            tmpFile.delete();
+            throw new IOException("rename failed: " + libFile);
         }
-        bufferedOutput.flush();
-        bufferedOutput.close();
-        output.close();
-        bufferedInput.close();
-        input.close();
+        return total;
+    }
+
+    /**
+     * so拷贝统计
+     */
+    private static final class NativeLibStats {
+        int copied;
+        int skipped;
+        long bytes;
     }
 
     /**
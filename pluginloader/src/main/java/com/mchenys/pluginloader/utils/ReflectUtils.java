@@ -2,7 +2,16 @@ package com.mchenys.pluginloader.utils;
 
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
+import java.lang.reflect.Member;
 import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import dalvik.system.BaseDexClassLoader;
 
 /**
  * @Author: mChenys
@@ -11,10 +20,195 @@ import java.lang.reflect.Method;
  */
 public class ReflectUtils {
 
+    private static final char KIND_FIELD = 'F';
+    private static final char KIND_METHOD = 'M';
+    private static final char KIND_PUBLIC_METHOD = 'P';
+    private static final char KIND_CONSTRUCTOR = 'C';
+
+    /**
+     * 已解析的Field/Method/Constructor缓存,key=类+成员名+参数签名
+     * <p>
+     * 只缓存系统类和宿主ClassLoader中的类, 这些类不会被卸载; 插件ClassLoader中的类不缓存, 避免静态map持有插件的ClassLoader
+     */
+    private static final Map<MemberKey, Member> sMemberCache = new ConcurrentHashMap<>();
+    /**
+     * 当前系统版本不存在的成员,避免重复getDeclaredXxx抛异常
+     */
+    private static final Set<MemberKey> sMissingMembers = Collections.newSetFromMap(new ConcurrentHashMap<MemberKey, Boolean>());
+    private static final AtomicLong sHitCount = new AtomicLong();
+    private static final AtomicLong sMissCount = new AtomicLong();
+    private static final ClassLoader sBootClassLoader = Object.class.getClassLoader();
+    private static final ClassLoader sHostClassLoader = ReflectUtils.class.getClassLoader();
+
     static {
         ReflectionLimit.clearLimit();
     }
 
+    /**
+     * 查找并缓存类中声明的属性,已setAccessible
+     *
+     * @param clazz
+     * @param fieldName
+     * @return Field
+     * @throws NoSuchFieldException
+     */
+    public static Field findField(Class<?> clazz, String fieldName) throws NoSuchFieldException {
+        if (!isCacheable(clazz)) {
+            sMissCount.incrementAndGet();
+            Field field = clazz.getDeclaredField(fieldName);
+            field.setAccessible(true);
+            return field;
+        }
+        MemberKey key = new MemberKey(KIND_FIELD, clazz, fieldName, null);
+        Member member = lookup(key);
+        if (member != null) {
+            return (Field) member;
+        }
+        if (sMissingMembers.contains(key)) {
+            sHitCount.incrementAndGet();
+            throw new NoSuchFieldException(clazz.getName() + "#" + fieldName);
+        }
+        sMissCount.incrementAndGet();
+        try {
+            Field field = clazz.getDeclaredField(fieldName);
+            field.setAccessible(true);
+            sMemberCache.put(key, field);
+            return field;
+        } catch (NoSuchFieldException e) {
+            sMissingMembers.add(key);
+            throw e;
+        }
+    }
+
+    /**
+     * 查找并缓存类中声明的方法,已setAccessible
+     *
+     * @param clazz
+     * @param methodName
+     * @param argsType
+     * @return Method
+     * @throws NoSuchMethodException
+     */
+    public static Method findMethod(Class<?> clazz, String methodName, Class<?>... argsType) throws NoSuchMethodException {
+        return findMethod(KIND_METHOD, clazz, methodName, argsType);
+    }
+
+    /**
+     * 查找并缓存类的public方法(包括父类的),已setAccessible
+     *
+     * @param clazz
+     * @param methodName
+     * @param argsType
+     * @return Method
+     * @throws NoSuchMethodException
+     */
+    public static Method findPublicMethod(Class<?> clazz, String methodName, Class<?>... argsType) throws NoSuchMethodException {
+        return findMethod(KIND_PUBLIC_METHOD, clazz, methodName, argsType);
+    }
+
+    private static Method findMethod(char kind, Class<?> clazz, String methodName, Class<?>[] argsType) throws NoSuchMethodException {
+        if (!isCacheable(clazz)) {
+            sMissCount.incrementAndGet();
+            Method method = kind == KIND_PUBLIC_METHOD ? clazz.getMethod(methodName, argsType)
+                    : clazz.getDeclaredMethod(methodName, argsType);
+            method.setAccessible(true);
+            return method;
+        }
+        MemberKey key = new MemberKey(kind, clazz, methodName, argsType);
+        Member member = lookup(key);
+        if (member != null) {
+            return (Method) member;
+        }
+        if (sMissingMembers.contains(key)) {
+            sHitCount.incrementAndGet();
+            throw new NoSuchMethodException(clazz.getName() + "#" + methodName);
+        }
+        sMissCount.incrementAndGet();
+        try {
+            Method method = kind == KIND_PUBLIC_METHOD ? clazz.getMethod(methodName, argsType)
+                    : clazz.getDeclaredMethod(methodName, argsType);
+            method.setAccessible(true);
+            sMemberCache.put(key, method);
+            return method;
+        } catch (NoSuchMethodException e) {
+            sMissingMembers.add(key);
+            throw e;
+        }
+    }
+
+    /**
+     * 查找并缓存类中声明的构造方法,已setAccessible
+     *
+     * @param clazz
+     * @param argsType
+     * @return Constructor
+     * @throws NoSuchMethodException
+     */
+    public static Constructor<?> findConstructor(Class<?> clazz, Class<?>... argsType) throws NoSuchMethodException {
+        if (!isCacheable(clazz)) {
+            sMissCount.incrementAndGet();
+            Constructor<?> ctor = clazz.getDeclaredConstructor(argsType);
+            ctor.setAccessible(true);
+            return ctor;
+        }
+        MemberKey key = new MemberKey(KIND_CONSTRUCTOR, clazz, "<init>", argsType);
+        Member member = lookup(key);
+        if (member != null) {
+            return (Constructor<?>) member;
+        }
+        if (sMissingMembers.contains(key)) {
+            sHitCount.incrementAndGet();
+            throw new NoSuchMethodException(clazz.getName() + "#<init>");
+        }
+        sMissCount.incrementAndGet();
+        try {
+            Constructor<?> ctor = clazz.getDeclaredConstructor(argsType);
+            ctor.setAccessible(true);
+            sMemberCache.put(key, ctor);
+            return ctor;
+        } catch (NoSuchMethodException e) {
+            sMissingMembers.add(key);
+            throw e;
+        }
+    }
+
+    /**
+     * 是否可以放进静态缓存, 系统类和宿主的类跟进程同生命周期
+     *
+     * @param clazz
+     * @return
+     */
+    private static boolean isCacheable(Class<?> clazz) {
+        ClassLoader loader = clazz.getClassLoader();
+        return loader == null || loader == sBootClassLoader || loader == sHostClassLoader;
+    }
+
+    private static Member lookup(MemberKey key) {
+        Member member = sMemberCache.get(key);
+        if (member != null) {
+            sHitCount.incrementAndGet();
+        }
+        return member;
+    }
+
+    /**
+     * 反射缓存命中次数(包括不存在成员的命中)
+     *
+     * @return
+     */
+    public static long getCacheHitCount() {
+        return sHitCount.get();
+    }
+
+    /**
+     * 反射缓存未命中次数,即真正执行getDeclaredXxx的次数
+     *
+     * @return
+     */
+    public static long getCacheMissCount() {
+        return sMissCount.get();
+    }
+
     /**
      * 获取DexPathList 的dexElements
      *
@@ -23,9 +217,7 @@ public class ReflectUtils {
      * @throws Exception
      */
     public static Object getDexElements(Object pathList) throws Exception {
-        Field dexElements = pathList.getClass().getDeclaredField("dexElements");
-        dexElements.setAccessible(true);
-        return dexElements.get(pathList);
+        return findField(pathList.getClass(), "dexElements").get(pathList);
     }
 
     /**
@@ -36,9 +228,7 @@ public class ReflectUtils {
      * @throws Exception
      */
     public static Object getPathList(ClassLoader classLoader) throws Exception {
-        Field pathList = Class.forName("dalvik.system.BaseDexClassLoader").getDeclaredField("pathList");
-        pathList.setAccessible(true);
-        return pathList.get(classLoader);
+        return findField(BaseDexClassLoader.class, "pathList").get(classLoader);
     }
 
     /**
@@ -64,7 +254,7 @@ public class ReflectUtils {
      */
     public static Object getActivityThread() throws Exception {
         Class<?> activityThreadClass = Class.forName("android.app.ActivityThread");
-        return activityThreadClass.getMethod("currentActivityThread").invoke(null);
+        return findPublicMethod(activityThreadClass, "currentActivityThread").invoke(null);
     }
 
     /**
@@ -74,9 +264,7 @@ public class ReflectUtils {
      * @return api22之后是List<File>, 之前是 File[]
      */
     public static Object getNativeLibraryDirectories(Object dexPathList) throws Exception {
-        Field nativeLibraryDirectories = dexPathList.getClass().getDeclaredField("nativeLibraryDirectories");
-        nativeLibraryDirectories.setAccessible(true);
-        return nativeLibraryDirectories.get(dexPathList);
+        return findField(dexPathList.getClass(), "nativeLibraryDirectories").get(dexPathList);
     }
 
 
@@ -87,15 +275,11 @@ public class ReflectUtils {
      * @return NativeLibraryElement[]
      */
     public static Object getNativeLibraryPathElements(Object dexPathList) throws Exception {
-        Field nativeLibraryPathElements = dexPathList.getClass().getDeclaredField("nativeLibraryPathElements");
-        nativeLibraryPathElements.setAccessible(true);
-        return nativeLibraryPathElements.get(dexPathList);
+        return findField(dexPathList.getClass(), "nativeLibraryPathElements").get(dexPathList);
     }
 
     public static <T> T newInstance(Class<?> clazz, Class[] pareTyples, Object[] pareVaules) throws Exception {
-        Constructor ctor = clazz.getDeclaredConstructor(pareTyples);
-        ctor.setAccessible(true);
-        return (T) ctor.newInstance(pareVaules);
+        return (T) findConstructor(clazz, pareTyples).newInstance(pareVaules);
     }
 
     /**
@@ -125,9 +309,7 @@ public class ReflectUtils {
 
     public static void setField(Class<?> clazz, Object instance, String fieldName, Object
             value) throws Exception {
-        Field field = clazz.getDeclaredField(fieldName);
-        field.setAccessible(true);
-        field.set(instance, value);
+        findField(clazz, fieldName).set(instance, value);
     }
 
     /**
@@ -159,9 +341,7 @@ public class ReflectUtils {
 
     public static Object invokeMethod(Class<?> clazz, Object instance, String
             methodName, Class<?>[] argsType, Object... args) throws Exception {
-        Method method = clazz.getDeclaredMethod(methodName, argsType);
-        method.setAccessible(true);
-        return method.invoke(instance, args);
+        return findMethod(clazz, methodName, argsType).invoke(instance, args);
     }
 
     /**
@@ -188,9 +368,7 @@ public class ReflectUtils {
      */
     public static Object invokeStaticMethod(Class<?> clazz, String methodName, Class<?>[]
             argsType, Object... args) throws Exception {
-        Method method = clazz.getMethod(methodName, argsType);
-        method.setAccessible(true);
-        return method.invoke(null, args);
+        return findPublicMethod(clazz, methodName, argsType).invoke(null, args);
     }
 
     public static <T> T getStaticField(String className, String fieldName) throws Exception {
@@ -206,9 +384,7 @@ public class ReflectUtils {
      * @return
      */
     public static <T> T getStaticField(Class<?> tClass, String fieldName) throws Exception {
-        Field declaredField = tClass.getDeclaredField(fieldName);
-        declaredField.setAccessible(true);
-        return (T) declaredField.get(null);
+        return (T) findField(tClass, fieldName).get(null);
     }
 
     /**
@@ -245,8 +421,42 @@ public class ReflectUtils {
     }
 
     public static <T> T getField(Class<?> clazz, Object instance, String fieldName) throws Exception {
-        Field field = clazz.getDeclaredField(fieldName);
-        field.setAccessible(true);
-        return (T) field.get(instance);
+        return (T) findField(clazz, fieldName).get(instance);
+    }
+
+    /**
+     * 反射成员缓存的key
+     */
+    private static final class MemberKey {
+        private final char kind;
+        private final Class<?> clazz;
+        private final String name;
+        private final Class<?>[] argsType;
+        private final int hash;
+
+        MemberKey(char kind, Class<?> clazz, String name, Class<?>[] argsType) {
+            this.kind = kind;
+            this.clazz = clazz;
+            this.name = name;
+            // 复制一份, 调用方之后修改数组不会影响缓存的key
+            this.argsType = argsType == null || argsType.length == 0 ? null : argsType.clone();
+            this.hash = 31 * (31 * clazz.hashCode() + name.hashCode()) + kind + Arrays.hashCode(this.argsType);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof MemberKey)) return false;
+            MemberKey other = (MemberKey) o;
+            return kind == other.kind
+                    && clazz == other.clazz
+                    && name.equals(other.name)
+                    && Arrays.equals(argsType, other.argsType);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
     }
 }
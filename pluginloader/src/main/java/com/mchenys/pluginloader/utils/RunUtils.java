@@ -2,7 +2,6 @@ package com.mchenys.pluginloader.utils;
 
 import android.app.ActivityManager;
 import android.content.Context;
-import android.os.AsyncTask;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
@@ -12,9 +11,20 @@ import android.os.Process;
 
 import com.mchenys.pluginloader.core.Constants;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @Author: mChenys
@@ -23,8 +33,21 @@ import java.util.concurrent.Executor;
  */
 public class RunUtils {
     private static final int MESSAGE_RUN_ON_UITHREAD = 0x1;
+    private static final int MESSAGE_RUN_BATCH = 0x2;
+
+    // 插件加载中的并行任务(加载阶段、so解压等)使用的线程数, 和插件加载调度器一样不超过4
+    private static final int WORK_POOL_SIZE = Math.max(2, Math.min(Runtime.getRuntime().availableProcessors() - 1, 4));
+    private static final int WORK_QUEUE_SIZE = 32;
+    private static final long WORK_KEEP_ALIVE_SECONDS = 30;
 
     private static Handler sHandler;
+    private static ThreadPoolExecutor sWorkExecutor;
+    // 等待合并执行的任务
+    private static final List<Runnable> sBatchTasks = new ArrayList<>();
+    // 是否已经发送了合并执行的消息
+    private static boolean sBatchScheduled;
+    // 主线程等待子线程时, 每次最多等待这么久再检查一次是否完成
+    private static final long UI_WAIT_SLICE_MS = 10;
 
     /**
      * execute a runnable on ui thread, then return immediately. see also {@link #runOnUiThread(Runnable, boolean)}
@@ -56,12 +79,224 @@ public class RunUtils {
                 countDownLatch.await();
             } catch (InterruptedException e) {
                 Log.w(Constants.TAG, e);
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 发送到主线程的消息队列中执行, 在主线程调用时也不会直接执行
+     *
+     * @param runnable
+     */
+    public static void postOnUiThread(Runnable runnable) {
+        getHandler().post(runnable);
+    }
+
+    /**
+     * 在主线程执行, 立即返回Future, 调用者可以等待结果、设置超时或取消
+     * <p>
+     * 在主线程调用时直接执行
+     *
+     * @param callable
+     * @return 执行中抛出的异常通过Future.get抛出
+     */
+    public static <T> Future<T> submitOnUiThread(Callable<T> callable) {
+        FutureTask<T> task = new FutureTask<>(callable);
+        if (Thread.currentThread() == Looper.getMainLooper().getThread()) {
+            task.run();
+        } else {
+            getHandler().post(task);
+        }
+        return task;
+    }
+
+    /**
+     * 和{@link #submitOnUiThread(Callable)}一样, 但短时间内提交的多个任务会合并到同一个主线程消息中执行,
+     * 适合多个插件同时加载时创建Application
+     *
+     * @param callable
+     * @return
+     */
+    public static <T> Future<T> submitOnUiThreadCoalesced(Callable<T> callable) {
+        FutureTask<T> task = new FutureTask<>(callable);
+        if (Thread.currentThread() == Looper.getMainLooper().getThread()) {
+            task.run();
+            return task;
+        }
+        synchronized (sBatchTasks) {
+            sBatchTasks.add(task);
+            // 唤醒在主线程等待的awaitOnUiThread
+            sBatchTasks.notifyAll();
+            if (!sBatchScheduled) {
+                sBatchScheduled = true;
+                getHandler().sendEmptyMessage(MESSAGE_RUN_BATCH);
+            }
+        }
+        return task;
+    }
+
+    /**
+     * 等待Future执行完成
+     *
+     * @param future
+     * @return
+     * @throws Exception 执行中抛出的异常, 等待被中断时取消任务并抛出InterruptedException
+     */
+    public static <T> T await(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw e;
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    /**
+     * 等待Future执行完成, 超时后取消还没开始执行的任务
+     *
+     * @param future
+     * @param timeout
+     * @param unit
+     * @return
+     * @throws Exception 执行中抛出的异常, 超时抛出TimeoutException
+     */
+    public static <T> T await(Future<T> future, long timeout, TimeUnit unit) throws Exception {
+        try {
+            return future.get(timeout, unit);
+        } catch (TimeoutException e) {
+            future.cancel(false);
+            throw e;
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw e;
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    /**
+     * 等待Future执行完成, 在主线程调用时等待期间执行{@link #submitOnUiThreadCoalesced}提交的任务.
+     * <p>
+     * 子线程加载插件时会提交到主线程创建Application并等待, 主线程又在等待加载完成, 不执行的话会互相等到超时
+     *
+     * @param future
+     * @return
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    public static <T> T awaitOnUiThread(Future<T> future) throws InterruptedException, ExecutionException {
+        try {
+            return awaitOnUiThread(future, -1);
+        } catch (TimeoutException e) {
+            // 不限时, 不会超时
+            throw new ExecutionException(e);
+        }
+    }
+
+    /**
+     * 和{@link #awaitOnUiThread(Future)}一样, 但最多等待timeout
+     *
+     * @param future
+     * @param timeout
+     * @param unit
+     * @return
+     * @throws InterruptedException
+     * @throws ExecutionException
+     * @throws TimeoutException
+     */
+    public static <T> T awaitOnUiThread(Future<T> future, long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        return awaitOnUiThread(future, unit.toNanos(timeout));
+    }
+
+    private static <T> T awaitOnUiThread(Future<T> future, long timeoutNanos)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (Thread.currentThread() != Looper.getMainLooper().getThread()) {
+            return timeoutNanos < 0 ? future.get() : future.get(timeoutNanos, TimeUnit.NANOSECONDS);
+        }
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (!future.isDone()) {
+            runBatchTasks();
+            long waitMs = UI_WAIT_SLICE_MS;
+            if (timeoutNanos >= 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    break;
+                }
+                waitMs = Math.min(waitMs, TimeUnit.NANOSECONDS.toMillis(remaining) + 1);
+            }
+            synchronized (sBatchTasks) {
+                if (sBatchTasks.isEmpty() && !future.isDone()) {
+                    sBatchTasks.wait(waitMs);
+                }
+            }
+        }
+        return future.get(0, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 执行{@link #submitOnUiThreadCoalesced}提交的任务, 只能在主线程调用
+     */
+    private static void runBatchTasks() {
+        List<Runnable> tasks;
+        synchronized (sBatchTasks) {
+            if (sBatchTasks.isEmpty()) {
+                return;
             }
+            tasks = new ArrayList<>(sBatchTasks);
+            sBatchTasks.clear();
+        }
+        // FutureTask不会抛出异常, 一个任务失败不影响其他任务
+        for (Runnable task : tasks) {
+            task.run();
+        }
+    }
+
+    private static Exception unwrap(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof Exception) {
+            return (Exception) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
         }
+        return e;
     }
 
+    /**
+     * 插件加载使用的线程池, 线程数和队列都有上限, 队列满时在提交任务的线程直接执行, 不会抛出RejectedExecutionException
+     * <p>
+     * 不使用AsyncTask.THREAD_POOL_EXECUTOR: api28及以下它的队列只有128, 满了之后直接拒绝, 而且和App的其他任务共用
+     *
+     * @return
+     */
     public static Executor getThreadPool() {
-        return AsyncTask.THREAD_POOL_EXECUTOR;
+        synchronized (RunUtils.class) {
+            if (sWorkExecutor == null) {
+                sWorkExecutor = new ThreadPoolExecutor(WORK_POOL_SIZE, WORK_POOL_SIZE, WORK_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                        new ArrayBlockingQueue<Runnable>(WORK_QUEUE_SIZE), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, "PluginWorker-" + mCount.incrementAndGet());
+                    }
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+                sWorkExecutor.allowCoreThreadTimeOut(true);
+            }
+            return sWorkExecutor;
+        }
     }
 
     private static String getProcessNameByPid(Context context, int pid) {
@@ -118,6 +353,11 @@ public class RunUtils {
                         pair.second.countDown();
                     }
                 }
+            } else if (msg.what == MESSAGE_RUN_BATCH) {
+                synchronized (sBatchTasks) {
+                    sBatchScheduled = false;
+                }
+                runBatchTasks();
             }
         }
     }